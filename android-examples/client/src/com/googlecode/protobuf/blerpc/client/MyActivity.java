@@ -107,6 +107,13 @@ public class MyActivity extends Activity implements BleRpcConnectionFactory.Disc
     private Api.WifiResponse response;
     private BleRpcConnectionFactory connectionFactory;
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        connectionFactory.close(); // disconnects and stops the callback thread (does not block)
+    }
+
     private void connect() {
         logView.setText("");
         buttonConnect.setEnabled(false);
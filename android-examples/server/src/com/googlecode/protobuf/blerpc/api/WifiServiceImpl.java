@@ -82,8 +82,9 @@ public class WifiServiceImpl extends Api.WifiService {
 
     private static final int WIFI_DISCOVERY_TIMEOUT = 30 * 1000;
 
+    // one scan at a time: the scan in progress is kept in the fields (calls of other methods are not blocked)
     @Override
-    public void getWifiNetworks(RpcController controller, Api.WifiRequest request, RpcCallback<Api.WifiResponse> done) {
+    public synchronized void getWifiNetworks(RpcController controller, Api.WifiRequest request, RpcCallback<Api.WifiResponse> done) {
         logger.debug("getWifiNetworks() started");
 
         // notify
@@ -3,6 +3,8 @@ package com.googlecode.protobuf.blerpc.server;
 import android.app.Activity;
 import android.os.Bundle;
 import android.widget.EditText;
+import com.googlecode.protobuf.blerpc.CachingService;
+import com.googlecode.protobuf.blerpc.CoalescingService;
 import com.googlecode.protobuf.blerpc.ServerBleRpcConnectionFactory;
 import com.googlecode.protobuf.blerpc.api.WifiServiceImpl;
 import com.googlecode.protobuf.socketrpc.RpcServer;
@@ -42,8 +44,12 @@ public class MyActivity extends Activity {
                 UUIDHelper.expandUUID("FFE4"),
                 true);
 
-        server = new RpcServer(rpcConnectionFactory, Executors.newFixedThreadPool(1), true);
-        WifiServiceImpl service = new WifiServiceImpl(this);
+        // several workers: identical scans in progress are coalesced, different ones wait for each other
+        server = new RpcServer(rpcConnectionFactory, Executors.newFixedThreadPool(4), true);
+        CoalescingService coalescingService = new CoalescingService(new WifiServiceImpl(this));
+        coalescingService.coalesce("getWifiNetworks"); // concurrent calls share one scan
+        CachingService service = new CachingService(coalescingService);
+        service.setTtl("getWifiNetworks", 10 * 1000); // scan results are reused for 10 seconds
         server.registerService(service); // For non-blocking impl
         server.startServer();
     }
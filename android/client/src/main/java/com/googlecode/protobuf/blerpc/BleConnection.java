@@ -3,175 +3,231 @@ package com.googlecode.protobuf.blerpc;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import com.google.protobuf.MessageLite;
-import com.googlecode.protobuf.socketrpc.RpcConnectionFactory;
+import android.os.Handler;
+import android.os.Looper;
 
 import java.io.*;
-import java.util.Arrays;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Connection for BLE (central role)
+ *
+ * Connection is BLE link shared by many RPC calls, each call has its own channel (see {@link #openChannel()}).
+ * All GATT operations (subscription, MTU request, packet writes) are serialized by {@link GattQueue},
+ * its completion events should be passed by the GATT callback (see `on..` methods).
+ * Packets not acknowledged by the server are checked periodically on the handler thread
+ * (see {@link BleOutputStream#checkAcknowledged()}).
  */
-public class BleConnection implements RpcConnectionFactory.Connection {
+public class BleConnection {
 
     private BluetoothGatt connection;
     private BluetoothGattCharacteristic writeChar;
     private BluetoothGattCharacteristic readChar;
 
-    private final boolean delimited;
+    private ClientBleOutputStream out;
+    private BleLink link;
+    private GattQueue queue;
+    private Handler handler;
 
-    private BleInputStream in;
-    private BleOutputStream out;
+    private Runnable ackCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (closed)
+                return;
+
+            out.checkAcknowledged();
+            handler.postDelayed(this, BleOutputStream.ACK_TIMEOUT);
+        }
+    };
 
     private static final String SUBSCRIBE_DESCRIPTOR_UUID = "00002902-0000-1000-8000-00805f9b34fb"; // 0x2902
 
     public BleConnection(BluetoothGatt connection,
                         BluetoothGattCharacteristic writeChar,
                         BluetoothGattCharacteristic readChar,
-                        boolean delimited) throws IOException {
+                        boolean delimited,
+                        int inputBufferSize,
+                        Handler handler) throws IOException {
         this.connection = connection;
         this.writeChar = writeChar;
         this.readChar = readChar;
-        this.delimited = delimited;
 
-        in = new BleInputStream(BleInputStream.INPUT_BUFFER_SIZE, BleInputStream.READ_TIMEOUT);
-        out = new ClientBleOutputStream(BleOutputStream.OUTPUT_BUFFER_SIZE, writeChar, connection);
+        this.handler = handler;
+
+        queue = new GattQueue(connection, handler);
+        out = new ClientBleOutputStream(BleOutputStream.OUTPUT_BUFFER_SIZE, writeChar, queue);
+        link = new BleLink(out, inputBufferSize, delimited, null); // channels are opened by the client only
+        handler.postDelayed(ackCheck, BleOutputStream.ACK_TIMEOUT);
     }
 
-    private AtomicBoolean subscribed = new AtomicBoolean(false);
-    private AtomicBoolean unsubscribed = new AtomicBoolean(false);
-    private BluetoothGattDescriptor readDescriptor;
+    public BleConnection(BluetoothGatt connection,
+                        BluetoothGattCharacteristic writeChar,
+                        BluetoothGattCharacteristic readChar,
+                        boolean delimited,
+                        int inputBufferSize) throws IOException {
+        this(connection, writeChar, readChar, delimited, inputBufferSize, new Handler(Looper.getMainLooper()));
+    }
 
-    public boolean subscribe() {
-        subscribed.set(false);
+    public BleConnection(BluetoothGatt connection,
+                        BluetoothGattCharacteristic writeChar,
+                        BluetoothGattCharacteristic readChar,
+                        boolean delimited) throws IOException {
+        this(connection, writeChar, readChar, delimited, BleInputStream.INPUT_BUFFER_SIZE);
+    }
 
-        // subscribe to read notifications
-        connection.setCharacteristicNotification(readChar, true); // TODO: for some reason not working (need to subscribe manually)
+    private AtomicBoolean subscribed = new AtomicBoolean(false);
 
-        // WARNING: delay should be set (http://stackoverflow.com/questions/17910322/android-ble-api-gatt-notification-not-received)
-        try {
-            Thread.sleep(100);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+    public boolean isSubscribed() {
+        return subscribed.get();
+    }
 
-        // subscribe manually
-        readDescriptor = readChar.getDescriptor(UUID.fromString(SUBSCRIBE_DESCRIPTOR_UUID));
-        readDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE); // local value
+    private BluetoothGattDescriptor getReadDescriptor() {
+        return readChar.getDescriptor(UUID.fromString(SUBSCRIBE_DESCRIPTOR_UUID));
+    }
 
+    /**
+     * Request ATT MTU (does not block), {@link #onMtuChanged(int, int)} is invoked when changed
+     * @param callback invoked when MTU is changed or request failed/timed out (default MTU is used)
+     */
+    public boolean requestMtu(int mtu, int timeout, GattQueue.Callback callback) {
+        return queue.enqueue(GattQueue.requestMtu(mtu, timeout, callback));
+    }
+
+    /**
+     * Subscribe to read characteristic notifications (does not block)
+     * @param callback invoked when subscribed or failed to subscribe
+     */
+    public boolean subscribe(final GattQueue.Callback callback) {
         subscribed.set(false);
-        // making few attempts to subscribe
-        for (int i=0; i<3; i++) {
-            if (connection.writeDescriptor(readDescriptor)) // post value to remote
-                break;
-
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-            }
-        }
 
-        // wait for subscribed to read characteristic
-        while (!subscribed.get()) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        // subscribe to read notifications
+        connection.setCharacteristicNotification(readChar, true); // TODO: for some reason not working (need to subscribe manually)
 
-        return true;
+        // subscribe manually (queued, so it's written right after the previous GATT operation is completed)
+        return queue.enqueue(GattQueue.writeDescriptor(getReadDescriptor(), BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, new GattQueue.Callback() {
+            @Override
+            public void onFinished(boolean success) {
+                subscribed.set(success);
+                if (success)
+                    link.sendCodecs(); // negotiate compression before the first call
+                callback.onFinished(success);
+            }
+        }));
     }
 
-    public void notifyDescriptorWritten(BluetoothGattDescriptor descriptor) {
-        if (descriptor == readDescriptor) {
-            if (Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE) ||
-                Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.ENABLE_INDICATION_VALUE))
-                subscribed.set(true);
-            else if (Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE))
-                unsubscribed.set(true);
-        }
+    /**
+     * Open channel for new RPC call
+     */
+    public BleChannel openChannel() throws IOException {
+        return link.openChannel();
     }
 
-    @Override
-    public void sendProtoMessage(MessageLite message) throws IOException {
-        // Write message
-        if (delimited) {
-            message.writeDelimitedTo(out);
-            out.flush();
-        } else {
-            message.writeTo(out);
-            out.flush();
-        }
+    public BleLink getLink() {
+        return link;
     }
 
-    @Override
-    public void receiveProtoMessage(MessageLite.Builder messageBuilder) throws IOException {
-        // Read message
-        if (delimited) {
-            messageBuilder.mergeDelimitedFrom(in);
-        } else {
-            messageBuilder.mergeFrom(in);
-        }
+    public BluetoothGatt getGatt() {
+        return connection;
     }
 
-    private boolean closed = false;
+    private volatile boolean closed = false;
 
-    @Override
-    public void close() throws IOException {
-        // unsubscribe
-        connection.setCharacteristicNotification(readChar, false);
+    /**
+     * To be invoked from outside when BLE link is lost
+     */
+    public void onDisconnected() {
+        if (closed)
+            return;
 
-        // unsubscribe manually
-        readDescriptor = readChar.getDescriptor(UUID.fromString(SUBSCRIBE_DESCRIPTOR_UUID));
-        readDescriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE); // local value
+        closed = true;
+        handler.removeCallbacks(ackCheck);
+        queue.close(); // pending operations fail
+        try {
+            link.close(); // readers get end of stream
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        // making few attempts to unsubscribe
-        unsubscribed.set(false);
-        for (int i=0; i<3; i++) {
-            if (connection.writeDescriptor(readDescriptor)) // post value to remote
-                break;
+    /**
+     * Close BLE connection without blocking: read characteristic notifications are unsubscribed first,
+     * the rest is closed on the handler thread when unsubscription is confirmed (or timed out)
+     * @param callback invoked when closed (can be null)
+     */
+    public void close(final Runnable callback) {
+        if (closed)
+            return;
 
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-            }
-        }
+        closed = true; // no calls are started anymore
+        handler.removeCallbacks(ackCheck);
 
-        // wait for unsubscribed to read characteristic
-        while (!unsubscribed.get()) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        connection.setCharacteristicNotification(readChar, false);
+        boolean enqueued = queue.enqueue(GattQueue.writeDescriptor(getReadDescriptor(), BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, new GattQueue.Callback() {
+            @Override
+            public void onFinished(boolean success) {
+                onUnsubscribed(callback);
             }
-        }
+        }));
 
-        in.close();
-        out.close();
+        if (!enqueued)
+            onUnsubscribed(callback);
+    }
+
+    private void onUnsubscribed(Runnable callback) {
+        try {
+            link.close();
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        queue.close();
 
         // close BLE connection
         connection.disconnect();
 
-        closed = true;
+        if (callback != null)
+            callback.run();
     }
 
-    @Override
     public boolean isClosed() {
         return closed;
     }
 
-    public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic) {
-        // packet is sent, need to notify output stream
+    /**
+     * Use "write without response" with `window` packets in flight (if supported by the server)
+     * @return true if enabled
+     */
+    public boolean enableWriteWithoutResponse(int window) {
+        return out.enableWriteWithoutResponse(window);
+    }
+
+    public void onMtuChanged(int mtu, int status) {
+        // packets are fragmented using negotiated MTU
+        if (status == BluetoothGatt.GATT_SUCCESS)
+            out.setMtu(mtu);
+
+        queue.onCompleted(GattQueue.REQUEST_MTU, status);
+    }
+
+    public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        queue.onCompleted(GattQueue.WRITE_DESCRIPTOR, status);
+    }
+
+    public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        queue.onCompleted(GattQueue.READ_CHARACTERISTIC, status);
+    }
+
+    public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        // packet is sent (or failed), output stream is notified by the queue
         if (characteristic == writeChar)
-            out.notifyWritten();
+            queue.onCompleted(GattQueue.WRITE_CHARACTERISTIC, status);
     }
 
-    public void onCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
-        // incoming bytes arrive, need to notify input stream
+    public void onCharacteristicChanged(BluetoothGattCharacteristic characteristic, byte[] value) {
+        // incoming packet arrives, need to notify channel input stream (data, close) or output stream (credit)
         if (characteristic == readChar)
-            in.doRead(characteristic.getValue());
+            link.dispatch(value);
     }
 }
@@ -0,0 +1,143 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.*;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batch of calls sent to the server as one call (central role)
+ *
+ * Calls made using stubs created for the batch are queued until {@link #send()} is invoked,
+ * then the server runs them (at the same time or one by one in order) and sends all the responses back at once.
+ * `done` callbacks are invoked on the BLE callback thread (see {@link BleRpcChannel}).
+ */
+public class BleRpcBatch implements RpcChannel {
+
+    /**
+     * Call queued
+     */
+    private static class BatchCall {
+        final SocketRpcProtos.Request rpcRequest;
+        final RpcController controller;
+        final Message responsePrototype;
+        final RpcCallback<Message> done;
+
+        BatchCall(SocketRpcProtos.Request rpcRequest, RpcController controller, Message responsePrototype, RpcCallback<Message> done) {
+            this.rpcRequest = rpcRequest;
+            this.controller = controller;
+            this.responsePrototype = responsePrototype;
+            this.done = done;
+        }
+    }
+
+    private BleRpcChannel channel;
+    private boolean sequential;
+    private List<BatchCall> calls = new ArrayList<BatchCall>();
+
+    /**
+     * @param sequential server runs the calls one by one in order (otherwise at the same time)
+     */
+    public BleRpcBatch(BleRpcChannel channel, boolean sequential) {
+        this.channel = channel;
+        this.sequential = sequential;
+    }
+
+    public BleRpcBatch(BleRpcConnectionFactory connectionFactory, boolean sequential) {
+        this(new BleRpcChannel(connectionFactory), sequential);
+    }
+
+    /**
+     * @return calls queued
+     */
+    public synchronized int size() {
+        return calls.size();
+    }
+
+    @Override
+    public synchronized void callMethod(Descriptors.MethodDescriptor method,
+                                        RpcController controller,
+                                        Message request,
+                                        Message responsePrototype,
+                                        RpcCallback<Message> done) {
+        SocketRpcProtos.Request rpcRequest = SocketRpcProtos.Request.newBuilder()
+                .setServiceName(method.getService().getFullName())
+                .setMethodName(method.getName())
+                .setRequestProto(request.toByteString())
+                .build();
+
+        calls.add(new BatchCall(rpcRequest, controller, responsePrototype, done));
+    }
+
+    /**
+     * Send calls queued (does not block), the batch can be used for the next calls
+     */
+    public void send() {
+        final List<BatchCall> sentCalls;
+        synchronized (this) {
+            if (calls.isEmpty())
+                return;
+
+            sentCalls = calls;
+            calls = new ArrayList<BatchCall>();
+        }
+
+        List<SocketRpcProtos.Request> requests = new ArrayList<SocketRpcProtos.Request>(sentCalls.size());
+        for (BatchCall eachCall : sentCalls)
+            requests.add(eachCall.rpcRequest);
+
+        SocketRpcProtos.Request batchRequest;
+        try {
+            batchRequest = SocketRpcProtos.Request.newBuilder()
+                    .setServiceName(BleBatch.SERVICE_NAME)
+                    .setMethodName(sequential ? BleBatch.METHOD_SEQUENTIAL : BleBatch.METHOD_PARALLEL)
+                    .setRequestProto(BleBatch.writeMessages(requests))
+                    .build();
+        } catch (IOException e) {
+            fail(sentCalls, "Failed to write request: " + e.getMessage());
+            return;
+        }
+
+        channel.call(batchRequest, new BleRpcChannel.ResponseCallback() {
+            @Override
+            public void onResponse(SocketRpcProtos.Response rpcResponse) {
+                if (rpcResponse.hasError()) {
+                    fail(sentCalls, rpcResponse.getError());
+                    return;
+                }
+
+                List<SocketRpcProtos.Response> responses;
+                try {
+                    responses = BleBatch.readResponses(rpcResponse.getResponseProto());
+                } catch (IOException e) {
+                    fail(sentCalls, "Failed to parse response: " + e.getMessage());
+                    return;
+                }
+
+                if (responses.size() != sentCalls.size()) {
+                    fail(sentCalls, "Unexpected count of responses: " + responses.size());
+                    return;
+                }
+
+                for (int i = 0; i < sentCalls.size(); i++) {
+                    BatchCall eachCall = sentCalls.get(i);
+                    BleRpcChannel.onResponse(responses.get(i), eachCall.controller, eachCall.responsePrototype, eachCall.done);
+                }
+            }
+
+            @Override
+            public void onFailed(String reason) {
+                fail(sentCalls, reason);
+            }
+        });
+    }
+
+    private static void fail(List<BatchCall> calls, String reason) {
+        for (BatchCall eachCall : calls) {
+            eachCall.controller.setFailed(reason);
+            eachCall.done.run(null);
+        }
+    }
+}
@@ -0,0 +1,560 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.*;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Asynchronous RpcChannel for BLE (central role)
+ *
+ * No thread is blocked per call: request is written without blocking and response is collected
+ * as BLE packets arrive, so `done` callbacks are invoked on the BLE callback thread (they must not block).
+ * `done` is invoked with null if the call failed (see `controller.failed()`).
+ * Only connecting to the server (if not connected yet) is done on a single connecting thread.
+ * Server-streaming methods are called with {@link #callStreaming},
+ * client-streaming and bidirectional streaming methods are called with {@link #openStream}.
+ * Calls with {@link BleRpcController} can be canceled (see {@link BleRpcController#startCancel()}).
+ */
+public class BleRpcChannel implements RpcChannel {
+
+    private Logger logger = LoggerFactory.getLogger(BleRpcChannel.class.getSimpleName());
+
+    private BleRpcConnectionFactory connectionFactory;
+
+    public BleRpcChannel(BleRpcConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    @Override
+    public void callMethod(Descriptors.MethodDescriptor method,
+                           final RpcController controller,
+                           Message request,
+                           final Message responsePrototype,
+                           final RpcCallback<Message> done) {
+        SocketRpcProtos.Request rpcRequest = SocketRpcProtos.Request.newBuilder()
+                .setServiceName(method.getService().getFullName())
+                .setMethodName(method.getName())
+                .setRequestProto(request.toByteString())
+                .build();
+
+        call(rpcRequest, new ResponseCallback() {
+            @Override
+            public void onResponse(SocketRpcProtos.Response rpcResponse) {
+                BleRpcChannel.onResponse(rpcResponse, controller, responsePrototype, done);
+            }
+
+            @Override
+            public void onFailed(String reason) {
+                controller.setFailed(reason);
+                done.run(null);
+            }
+        }, controller);
+    }
+
+    /**
+     * Listener for the messages of streaming call (invoked on the BLE callback thread)
+     */
+    public interface StreamListener {
+        void onMessage(Message message);
+
+        /**
+         * Invoked once when the stream is finished
+         * @param success false if failed (see `controller.failed()`)
+         */
+        void onFinished(boolean success);
+    }
+
+    /**
+     * Call server-streaming method (registered on the server with `registerStreamingMethod()`),
+     * messages are passed to the listener as soon as each of them is received
+     */
+    public void callStreaming(Descriptors.MethodDescriptor method,
+                              final RpcController controller,
+                              Message request,
+                              final Message responsePrototype,
+                              final StreamListener listener) {
+        final SocketRpcProtos.Request rpcRequest = SocketRpcProtos.Request.newBuilder()
+                .setServiceName(method.getService().getFullName())
+                .setMethodName(method.getName())
+                .setRequestProto(request.toByteString())
+                .build();
+
+        startStream(rpcRequest, controller, responsePrototype, listener, null);
+    }
+
+    /**
+     * Call client-streaming or bidirectional streaming method (registered on the server with `registerStreamingMethod()`):
+     * more requests are sent to the stream returned, messages of the server are passed to the listener
+     * as soon as each of them is received
+     * @param request first request
+     * @return stream to send next requests to (it should be finished when all the requests are sent)
+     */
+    public RequestStream openStream(Descriptors.MethodDescriptor method,
+                                    RpcController controller,
+                                    Message request,
+                                    Message responsePrototype,
+                                    StreamListener listener) {
+        SocketRpcProtos.Request rpcRequest = SocketRpcProtos.Request.newBuilder()
+                .setServiceName(method.getService().getFullName())
+                .setMethodName(method.getName())
+                .setRequestProto(request.toByteString())
+                .build();
+
+        RequestStream requestStream = new RequestStream(rpcRequest);
+        startStream(rpcRequest, controller, responsePrototype, listener, requestStream);
+        return requestStream;
+    }
+
+    private void startStream(final SocketRpcProtos.Request rpcRequest,
+                             final RpcController controller,
+                             final Message responsePrototype,
+                             final StreamListener listener,
+                             final RequestStream requestStream) {
+        connectionFactory.openChannel(new BleRpcConnectionFactory.ChannelCallback() {
+            @Override
+            public void onOpened(BleChannel channel) {
+                new StreamCall(channel, controller, responsePrototype, listener, requestStream).start(rpcRequest, controller);
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                if (requestStream != null)
+                    requestStream.onFinished();
+
+                controller.setFailed("Failed to connect: " + e.getMessage());
+                listener.onFinished(false);
+            }
+        });
+    }
+
+    /**
+     * Stream of the requests of client-streaming or bidirectional streaming call:
+     * requests are queued and sent one by one without blocking (every request is a stream frame,
+     * request message of the call like the first one), end of stream is the channel output closed by the client.
+     */
+    public class RequestStream implements BleOutputStream.WriteCallback {
+
+        private final SocketRpcProtos.Request rpcRequest; // first request (frames are the same for the method)
+        private StreamCall call; // null until the first request is sent
+        private LinkedList<Message> requests = new LinkedList<Message>();
+        private boolean writing;
+        private boolean finishing; // finish() is invoked
+        private boolean finished; // output is closed or the call is finished
+
+        private RequestStream(SocketRpcProtos.Request rpcRequest) {
+            this.rpcRequest = rpcRequest;
+        }
+
+        /**
+         * Send the request after the requests sent before (does not block)
+         */
+        public void send(Message request) {
+            synchronized (this) {
+                if (finishing)
+                    throw new IllegalStateException("Stream is finished");
+
+                if (finished)
+                    return; // call is finished (see listener)
+
+                requests.add(request);
+            }
+            sendNext();
+        }
+
+        /**
+         * Finish the stream when all the requests are sent (the server receives end of stream)
+         */
+        public void finish() {
+            synchronized (this) {
+                finishing = true;
+            }
+            sendNext();
+        }
+
+        void onStarted(StreamCall call) {
+            synchronized (this) {
+                this.call = call;
+            }
+            sendNext();
+        }
+
+        synchronized void onFinished() {
+            finished = true;
+            requests.clear();
+        }
+
+        private void sendNext() {
+            Message request;
+            synchronized (this) {
+                if (call == null || writing || finished)
+                    return;
+
+                request = requests.poll();
+                if (request == null) {
+                    if (!finishing)
+                        return;
+
+                    finished = true;
+                } else {
+                    writing = true;
+                }
+            }
+
+            // all the requests are sent
+            if (request == null) {
+                call.channel.closeOutput();
+                return;
+            }
+
+            byte[] frameBytes;
+            try {
+                frameBytes = call.channel.encodeMessage(rpcRequest.toBuilder()
+                        .setRequestProto(request.toByteString())
+                        .build());
+            } catch (IOException e) {
+                call.fail("Failed to write request: " + e.getMessage());
+                return;
+            }
+
+            call.channel.send(frameBytes, this);
+        }
+
+        @Override
+        public void onWritten(boolean success) {
+            synchronized (this) {
+                writing = false;
+            }
+
+            if (!success) {
+                call.fail("Failed to send request");
+                return;
+            }
+
+            sendNext();
+        }
+    }
+
+    /**
+     * Response of the request (or failure), invoked once
+     */
+    interface ResponseCallback {
+        void onResponse(SocketRpcProtos.Response rpcResponse);
+        void onFailed(String reason);
+    }
+
+    /**
+     * Send the request in its own channel without blocking
+     */
+    void call(SocketRpcProtos.Request rpcRequest, ResponseCallback callback) {
+        call(rpcRequest, callback, null);
+    }
+
+    private void call(final SocketRpcProtos.Request rpcRequest, final ResponseCallback callback, final RpcController controller) {
+        connectionFactory.openChannel(new BleRpcConnectionFactory.ChannelCallback() {
+            @Override
+            public void onOpened(BleChannel channel) {
+                new Call(channel, callback).start(rpcRequest, controller);
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                callback.onFailed("Failed to connect: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Invoke `done` with the response of the method (or null if failed)
+     */
+    static void onResponse(SocketRpcProtos.Response rpcResponse, RpcController controller,
+                           Message responsePrototype, RpcCallback<Message> done) {
+        if (rpcResponse.hasError()) {
+            controller.setFailed(rpcResponse.getError());
+            done.run(null);
+            return;
+        }
+
+        if (!rpcResponse.getCallback() || !rpcResponse.hasResponseProto()) {
+            done.run(null); // service did not invoke its callback
+            return;
+        }
+
+        Message response;
+        try {
+            response = responsePrototype.newBuilderForType().mergeFrom(rpcResponse.getResponseProto()).build();
+        } catch (InvalidProtocolBufferException e) {
+            controller.setFailed("Failed to parse response: " + e.getMessage());
+            done.run(null);
+            return;
+        }
+
+        done.run(response);
+    }
+
+    /**
+     * Call in progress (one channel)
+     */
+    private class Call implements BleChannel.ReceiveListener, BleOutputStream.WriteCallback {
+
+        protected BleChannel channel;
+        private ResponseCallback callback;
+
+        private byte[] buffer = new byte[BleOutputStream.MAX_PACKET_SIZE];
+        protected byte[] pending = new byte[BleOutputStream.MAX_PACKET_SIZE]; // bytes of the messages not read yet
+        protected int pendingLength;
+        private int scannedLength; // bytes of the complete segments of the next message (none is the last one)
+        private int segmentLength = -1; // bytes of the next segment (-1 if its header is not received yet)
+        private AtomicBoolean finished = new AtomicBoolean(false);
+
+        public Call(BleChannel channel, ResponseCallback callback) {
+            this.channel = channel;
+            this.callback = callback;
+        }
+
+        /**
+         * @param controller controller to cancel the call with (if {@link BleRpcController})
+         */
+        public void start(SocketRpcProtos.Request rpcRequest, RpcController controller) {
+            if (controller instanceof BleRpcController)
+                ((BleRpcController) controller).setCancelHandler(new Runnable() {
+                    @Override
+                    public void run() {
+                        cancel();
+                    }
+                });
+
+            if (finished.get())
+                return; // canceled already
+
+            byte[] requestBytes;
+            try {
+                requestBytes = channel.encodeMessage(rpcRequest);
+            } catch (IOException e) {
+                fail("Failed to write request: " + e.getMessage());
+                return;
+            }
+
+            channel.setReceiveListener(this);
+            channel.send(requestBytes, this);
+        }
+
+        @Override
+        public void onWritten(boolean success) {
+            if (!success)
+                fail("Failed to send request");
+        }
+
+        @Override
+        public synchronized void onReceived(BleChannel channel) {
+            // collect bytes received (input stream does not block as the bytes are available)
+            BleInputStream in = channel.getIn();
+            try {
+                int available;
+                while ((available = in.available()) > 0) {
+                    int read = in.read(buffer, 0, Math.min(available, buffer.length));
+                    if (read < 0)
+                        break; // closed
+
+                    append(read);
+                }
+
+                readMessages();
+            } catch (IOException e) {
+                fail("Failed to receive response: " + e.getMessage());
+                return;
+            }
+
+            if (channel.isRemoteClosed() && !finished.get())
+                onRemoteClosed();
+        }
+
+        private void append(int length) {
+            if (pendingLength + length > pending.length)
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+
+            System.arraycopy(buffer, 0, pending, pendingLength, length);
+            pendingLength += length;
+        }
+
+        /**
+         * Get length of the message received completely (see {@link BleChannel#getMessageLength(byte[], int, int)}),
+         * scanning only the bytes received since the previous invocation
+         * @param offset offset of the message in pending bytes (the same until the message is received)
+         * @return bytes of the message or -1 if its last segment is not received yet
+         */
+        protected int getMessageLength(int offset) throws IOException {
+            while (true) {
+                int segmentOffset = offset + scannedLength;
+                if (segmentLength < 0) {
+                    segmentLength = BleChannel.getSegmentLength(pending, segmentOffset, pendingLength - segmentOffset);
+                    if (segmentLength < 0)
+                        return -1; // wait for the segment header
+                }
+
+                if (pendingLength - segmentOffset < segmentLength)
+                    return -1; // wait for the segment bytes
+
+                scannedLength += segmentLength;
+                segmentLength = -1;
+                if (BleChannel.isLastSegment(pending, segmentOffset)) {
+                    int length = scannedLength;
+                    scannedLength = 0;
+                    return length;
+                }
+            }
+        }
+
+        // handle the response as soon as it's received completely
+        protected void readMessages() throws IOException {
+            int length = getMessageLength(0);
+            if (length < 0)
+                return; // wait for the next bytes
+
+            SocketRpcProtos.Response.Builder responseBuilder = SocketRpcProtos.Response.newBuilder();
+            channel.readMessage(new ByteArrayInputStream(pending, 0, length), responseBuilder);
+            if (!close())
+                return;
+
+            callback.onResponse(responseBuilder.build());
+        }
+
+        // the other side closed the channel or BLE link is lost
+        protected void onRemoteClosed() {
+            fail(channel.isClosed() || pendingLength == 0
+                    ? "Failed to receive response: BLE connection is lost"
+                    : "Failed to receive response: truncated message");
+        }
+
+        // the server is notified, so it stops sending the response
+        public void cancel() {
+            if (finished.get())
+                return;
+
+            try {
+                channel.cancel();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            fail(BleRpcController.CANCELED);
+        }
+
+        protected void fail(String reason) {
+            logger.debug("call failed: " + reason);
+
+            if (!close())
+                return;
+
+            callback.onFailed(reason);
+        }
+
+        // returns false if already finished
+        protected boolean close() {
+            if (!finished.compareAndSet(false, true))
+                return false;
+
+            channel.setReceiveListener(null);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Streaming call in progress (one channel): every message of the server is a stream frame
+     */
+    private class StreamCall extends Call {
+
+        private RpcController controller;
+        private Message responsePrototype;
+        private StreamListener listener;
+        private RequestStream requestStream; // null if server-streaming call
+
+        public StreamCall(BleChannel channel, RpcController controller, Message responsePrototype,
+                          StreamListener listener, RequestStream requestStream) {
+            super(channel, null); // frames are handled by this call
+            this.controller = controller;
+            this.responsePrototype = responsePrototype;
+            this.listener = listener;
+            this.requestStream = requestStream;
+        }
+
+        @Override
+        public void onWritten(boolean success) {
+            if (!success) {
+                fail("Failed to send request");
+                return;
+            }
+
+            // first request is sent: next requests are sent
+            if (requestStream != null)
+                requestStream.onStarted(this);
+        }
+
+        @Override
+        protected boolean close() {
+            if (requestStream != null)
+                requestStream.onFinished();
+
+            return super.close();
+        }
+
+        @Override
+        protected void fail(String reason) {
+            logger.debug("streaming call failed: " + reason);
+
+            if (!close())
+                return;
+
+            controller.setFailed(reason);
+            listener.onFinished(false);
+        }
+
+        // server closes the channel when the stream is finished
+        @Override
+        protected void onRemoteClosed() {
+            if (channel.isClosed() || pendingLength > 0)
+                super.onRemoteClosed();
+            else if (close())
+                listener.onFinished(true);
+        }
+
+        // handle frames received completely
+        @Override
+        protected void readMessages() throws IOException {
+            int offset = 0;
+            int length;
+            while ((length = getMessageLength(offset)) >= 0) {
+                SocketRpcProtos.Response.Builder frameBuilder = SocketRpcProtos.Response.newBuilder();
+                channel.readMessage(new ByteArrayInputStream(pending, offset, length), frameBuilder);
+                offset += length;
+
+                if (!onFrame(frameBuilder.build()))
+                    return;
+            }
+
+            System.arraycopy(pending, offset, pending, 0, pendingLength - offset);
+            pendingLength -= offset;
+        }
+
+        // returns false if the stream is finished
+        private boolean onFrame(SocketRpcProtos.Response frame) throws IOException {
+            if (frame.hasError()) {
+                fail(frame.getError());
+                return false;
+            }
+
+            listener.onMessage(responsePrototype.newBuilderForType().mergeFrom(frame.getResponseProto()).build());
+            return true;
+        }
+    }
+}
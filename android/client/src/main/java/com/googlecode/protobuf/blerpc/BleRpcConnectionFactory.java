@@ -2,24 +2,44 @@ package com.googlecode.protobuf.blerpc;
 
 import android.bluetooth.*;
 import android.content.Context;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import com.googlecode.protobuf.socketrpc.RpcConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * RpcConnectionFactory for BLE (central role)
  *
+ * Established BLE connection (GATT link, discovered characteristics and subscription) is kept
+ * and handed out again for the next calls until it's idle for `idleTimeout` or the link is lost.
+ * Concurrent calls share the connection, each of them has its own channel (see {@link BleLink}).
+ *
+ * Known device (set explicitly or the last connected one) is connected directly without scanning.
+ *
+ * All GATT callbacks are handled in order on a single dedicated thread (so they must never block).
  */
 public class BleRpcConnectionFactory extends BluetoothGattCallback implements RpcConnectionFactory {
 
+    private Logger logger = LoggerFactory.getLogger(BleRpcConnectionFactory.class.getSimpleName());
+
     public static final int DISCOVERY_TIMEOUT  = 10 * 1000; // 10 seconds
+    public static final int MTU_TIMEOUT  = 1000; // 1 second
+    public static final int IDLE_TIMEOUT  = 30 * 1000; // 30 seconds
 
     private Context context;
     private BluetoothAdapter adapter;
-    private BluetoothGatt gattConnection;
+    private volatile BluetoothGatt gattConnection; // GATT link being connected or connected
     private boolean delimited;
 
     private UUID serviceUUID;
@@ -45,6 +65,126 @@ public class BleRpcConnectionFactory extends BluetoothGattCallback implements Rp
         this.discoveryTimeout = discoveryTimeout;
     }
 
+    private int inputBufferSize = BleInputStream.INPUT_BUFFER_SIZE;
+
+    public int getInputBufferSize() {
+        return inputBufferSize;
+    }
+
+    /**
+     * Max bytes received but not read yet per channel (call), so a link buffers up to
+     * {@link BlePacket#MAX_CHANNELS} times this size (incoming notifications are blocked when exceeded).
+     * Must be at least {@link BlePacket#INITIAL_CREDIT} as the sender starts with this credit.
+     */
+    public void setInputBufferSize(int inputBufferSize) {
+        if (inputBufferSize < BlePacket.INITIAL_CREDIT)
+            throw new IllegalArgumentException("Input buffer size " + inputBufferSize
+                + " is less than initial credit " + BlePacket.INITIAL_CREDIT);
+        this.inputBufferSize = inputBufferSize;
+    }
+
+    private int mtu = BleOutputStream.MAX_MTU;
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * ATT MTU to request after services are discovered (Android 21+), default MTU (23) to skip negotiation
+     */
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    private boolean writeWithoutResponse = false;
+    private int writeWindow = ClientBleOutputStream.NO_RESPONSE_WINDOW;
+
+    public boolean isWriteWithoutResponse() {
+        return writeWithoutResponse;
+    }
+
+    /**
+     * Pipeline client writes using "write without response" (server should be created with `writeWithoutResponse`)
+     */
+    public void setWriteWithoutResponse(boolean writeWithoutResponse) {
+        this.writeWithoutResponse = writeWithoutResponse;
+    }
+
+    public int getWriteWindow() {
+        return writeWindow;
+    }
+
+    /**
+     * Max packets written without response before the first of them is confirmed
+     */
+    public void setWriteWindow(int writeWindow) {
+        this.writeWindow = writeWindow;
+    }
+
+    private BleCompression compression;
+
+    public BleCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Compress messages if the server supports any of the codecs (see {@link BleCompression#createDefault()})
+     */
+    public void setCompression(BleCompression compression) {
+        this.compression = compression;
+    }
+
+    private int idleTimeout = IDLE_TIMEOUT;
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Time to keep BLE connection after the last call (0 to disconnect after every call)
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    private boolean autoConnect = false;
+
+    public boolean isAutoConnect() {
+        return autoConnect;
+    }
+
+    /**
+     * Use `autoConnect` when connecting directly to bonded device
+     */
+    public void setAutoConnect(boolean autoConnect) {
+        this.autoConnect = autoConnect;
+    }
+
+    private volatile String lastDeviceAddress;
+
+    /**
+     * @return MAC address of the last connected device (can be persisted and restored by the app)
+     */
+    public String getLastDeviceAddress() {
+        return lastDeviceAddress;
+    }
+
+    /**
+     * Device to connect directly without scanning if no device is set explicitly
+     */
+    public void setLastDeviceAddress(String lastDeviceAddress) {
+        this.lastDeviceAddress = lastDeviceAddress;
+    }
+
+    private long lastConnectTime;
+
+    /**
+     * @return time (ms) to establish the last BLE connection (including services discovery and subscription)
+     */
+    public long getLastConnectTime() {
+        return lastConnectTime;
+    }
+
     private volatile boolean serverDiscovered = false;
     private AtomicBoolean connected = new AtomicBoolean(false);
 
@@ -56,6 +196,10 @@ public class BleRpcConnectionFactory extends BluetoothGattCallback implements Rp
                                    boolean delimited) {
         this.context = context;
         this.discoveryHandler = new Handler(context.getMainLooper());
+
+        callbackThread = new HandlerThread("BleRpcCallbacks");
+        callbackThread.start();
+        callbackHandler = new Handler(callbackThread.getLooper());
         adapter = BluetoothAdapter.getDefaultAdapter();
 
         this.serviceUUID = UUID.fromString(serviceUUID);
@@ -69,23 +213,70 @@ public class BleRpcConnectionFactory extends BluetoothGattCallback implements Rp
         this(context, serviceUUID, null, readCharUUID, writeCharUUID, delimited);
     }
 
+    private HandlerThread callbackThread;
+    private Handler callbackHandler;
+    private final List<BleConnection> closingConnections = new CopyOnWriteArrayList<BleConnection>(); // unsubscribing
+
+    /**
+     * Close BLE connection and stop callback thread (factory can't be used after it),
+     * does not block (can be invoked on the main thread)
+     */
+    public void close() {
+        connectExecutor.shutdown();
+
+        // unsubscription is confirmed on the callback thread, so it's stopped when the connection is closed
+        closeConnection(new Runnable() {
+            @Override
+            public void run() {
+                callbackThread.quitSafely();
+            }
+        });
+    }
+
     public void _onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
         if (newState == BluetoothProfile.STATE_CONNECTED) {
             gatt.discoverServices();
         }
+
+        if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            onDisconnected(gatt);
+        }
+    }
+
+    // link is lost or closed
+    private void onDisconnected(BluetoothGatt gatt) {
+        synchronized (this) {
+            if (connection != null && connection.getGatt() == gatt) {
+                connection.onDisconnected();
+                connection = null;
+                activeCalls = 0; // calls in progress fail
+            }
+        }
+        gatt.close();
+
+        // still connecting (disconnection of the link given up is ignored)
+        if (gatt == gattConnection && !connected.get()) {
+            connectionThrowable = new IOException("Disconnected while connecting");
+            connected.set(true); // just to unblock thread
+        }
     }
 
     @Override
     public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
-        new Thread(new Runnable() {
+        callbackHandler.post(new Runnable() {
             @Override
             public void run() {
                 _onConnectionStateChange(gatt, status, newState);
             }
-        }).start();
+        });
     }
 
-    public void _onServicesDiscovered(BluetoothGatt gatt, int status) {
+    public void _onServicesDiscovered(final BluetoothGatt gatt, int status) {
+        if (gatt != gattConnection)
+            return; // connecting is given up already
+
+        readChar = null;
+        writeChar = null;
         for (BluetoothGattService eachService : gatt.getServices())
             if (eachService.getUuid().equals(serviceUUID)) {
                 // find characteristics
@@ -106,57 +297,137 @@ public class BleRpcConnectionFactory extends BluetoothGattCallback implements Rp
         }
 
         try {
-            connection = new BleConnection(gattConnection, writeChar, readChar, delimited);
+            connection = new BleConnection(gattConnection, writeChar, readChar, delimited, inputBufferSize, callbackHandler);
         } catch (IOException e) {
             gattConnection.disconnect();
             connectionThrowable = e;
             connected.set(true); // just to unblock thread
             return;
         }
-        connection.subscribe(); // blocks thread
+        if (writeWithoutResponse)
+            connection.enableWriteWithoutResponse(writeWindow);
+        connection.getLink().setCompression(compression);
+        connection.getLink().setFailureListener(linkFailureListener);
+
+        // GATT operations are queued: subscription is done right after MTU is changed (if requested)
+        if (mtu > BleOutputStream.DEFAULT_MTU && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            connection.requestMtu(mtu, MTU_TIMEOUT, null); // default MTU is used if failed
+        connection.subscribe(new GattQueue.Callback() {
+            @Override
+            public void onFinished(boolean success) {
+                if (gatt != gattConnection)
+                    return; // connecting is given up already
 
-        connected.set(true); // signal to return connection
+                if (!success) {
+                    gatt.disconnect();
+                    connectionThrowable = new Throwable("Failed to subscribe to read characteristic");
+                }
+                connected.set(true); // signal to return connection (or just to unblock thread)
+            }
+        });
     }
 
     @Override
     public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
-        new Thread(new Runnable() {
+        callbackHandler.post(new Runnable() {
             @Override
             public void run() {
                 _onServicesDiscovered(gatt, status);
             }
-        }).start();
+        });
+    }
+
+    // connection of GATT operation callback (connection being closed still completes its operations)
+    private BleConnection getConnection(BluetoothGatt gatt) {
+        BleConnection currentConnection = connection;
+        if (currentConnection != null && currentConnection.getGatt() == gatt)
+            return currentConnection;
+
+        for (BleConnection eachConnection : closingConnections)
+            if (eachConnection.getGatt() == gatt)
+                return eachConnection;
+        return null;
+    }
+
+    public void _onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        BleConnection callbackConnection = getConnection(gatt);
+        if (callbackConnection != null)
+            callbackConnection.onMtuChanged(mtu, status);
+    }
+
+    @Override
+    public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+        callbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                _onMtuChanged(gatt, mtu, status);
+            }
+        });
     }
 
     public void _onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-        connection.notifyDescriptorWritten(descriptor);
+        BleConnection callbackConnection = getConnection(gatt);
+        if (callbackConnection != null)
+            callbackConnection.onDescriptorWrite(descriptor, status);
     }
 
     @Override
     public void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
-        new Thread(new Runnable() {
+        callbackHandler.post(new Runnable() {
             @Override
             public void run() {
                 _onDescriptorWrite(gatt, descriptor, status);
             }
-        }).start();
+        });
+    }
+
+    public void _onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        BleConnection callbackConnection = getConnection(gatt);
+        if (callbackConnection != null)
+            callbackConnection.onCharacteristicWrite(characteristic, status);
     }
 
     @Override
     public void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
-        new Thread(new Runnable() {
+        callbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                _onCharacteristicWrite(gatt, characteristic, status);
+            }
+        });
+    }
+
+    public void _onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        BleConnection callbackConnection = getConnection(gatt);
+        if (callbackConnection != null)
+            callbackConnection.onCharacteristicRead(characteristic, status);
+    }
+
+    @Override
+    public void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+        callbackHandler.post(new Runnable() {
             @Override
             public void run() {
-                if (status == BluetoothGatt.GATT_SUCCESS)
-                    connection.onCharacteristicWrite(characteristic);
+                _onCharacteristicRead(gatt, characteristic, status);
             }
-        }).start();
+        });
+    }
+
+    public void _onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (connection != null)
+            connection.onCharacteristicChanged(characteristic, value);
     }
 
     @Override
-    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-        // WARNING: not in new background thread (in contrast to other on.. events) !
-        connection.onCharacteristicChanged(characteristic);
+    public void onCharacteristicChanged(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+        // value should be taken now as characteristic value is overwritten by the next notification
+        final byte[] value = characteristic.getValue();
+        callbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                _onCharacteristicChanged(gatt, characteristic, value);
+            }
+        });
     }
 
     private BluetoothAdapter.LeScanCallback connectScanCallback = new BluetoothAdapter.LeScanCallback() {
@@ -175,7 +446,7 @@ public class BleRpcConnectionFactory extends BluetoothGattCallback implements Rp
         }
     };
 
-    private BleConnection connection;
+    private volatile BleConnection connection;
     private Throwable connectionThrowable;
 
     /**
@@ -213,24 +484,276 @@ public class BleRpcConnectionFactory extends BluetoothGattCallback implements Rp
         }, discoveryTimeout);
     }
 
+    private final Object connectLock = new Object(); // one BLE connection is established at a time
+    private int activeCalls; // calls over the current connection
+
     @Override
     public Connection createConnection() throws IOException {
-        this.serverDiscovered = false;
+        return openCallChannel(acquireConnection());
+    }
 
-        // create connection every time it's required
-        connectionThrowable = null;
-        connected.set(false);
+    /**
+     * Callback for opening channel without blocking
+     */
+    public interface ChannelCallback {
+        void onOpened(BleChannel channel);
+        void onFailed(IOException e);
+    }
+
+    private ExecutorService connectExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Open channel for new call without blocking (closing the channel finishes the call).
+     * If BLE connection is not established yet, it's established on a single connecting thread
+     * and the callback is invoked on that thread.
+     */
+    public void openChannel(final ChannelCallback callback) {
+        // established connection
+        BleConnection callConnection;
+        synchronized (this) {
+            callConnection = connection;
+            if (callConnection != null && !callConnection.isClosed() && callConnection.isSubscribed()) {
+                discoveryHandler.removeCallbacks(idleRunnable);
+                activeCalls++;
+            } else {
+                callConnection = null;
+            }
+        }
+
+        if (callConnection != null) {
+            BleChannel channel;
+            try {
+                channel = openCallChannel(callConnection);
+            } catch (IOException e) {
+                callback.onFailed(e);
+                return;
+            }
+            callback.onOpened(channel);
+            return;
+        }
+
+        // connect
+        connectExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                BleChannel channel;
+                try {
+                    channel = openCallChannel(acquireConnection());
+                } catch (IOException e) {
+                    callback.onFailed(e);
+                    return;
+                } catch (RuntimeException e) {
+                    callback.onFailed(new IOException(e));
+                    return;
+                }
+                callback.onOpened(channel);
+            }
+        });
+    }
+
+    // get established connection or connect (blocks thread)
+    private BleConnection acquireConnection() throws IOException {
+        synchronized (connectLock) {
+            // reuse established connection
+            synchronized (this) {
+                discoveryHandler.removeCallbacks(idleRunnable);
+                if (connection != null && !connection.isClosed() && connection.isSubscribed()) {
+                    activeCalls++;
+                    return connection;
+                }
+            }
+
+            BleConnection newConnection = connect();
+            synchronized (this) {
+                activeCalls++;
+            }
+            return newConnection;
+        }
+    }
+
+    // every call has its own channel, so calls run concurrently over the connection
+    private BleChannel openCallChannel(final BleConnection callConnection) throws IOException {
+        BleChannel channel;
+        try {
+            channel = callConnection.openChannel();
+        } catch (IOException e) {
+            releaseConnection(callConnection);
+            throw e;
+        }
+
+        // closing the channel releases shared BLE connection
+        channel.setCloseListener(new BleChannel.CloseListener() {
+            @Override
+            public void onClosed(BleChannel channel) {
+                releaseConnection(callConnection);
+            }
+        });
+        return channel;
+    }
+
+    // invoked when call is finished (often on the GATT callback thread, so it must not block)
+    private void releaseConnection(BleConnection releasedConnection) {
+        synchronized (this) {
+            if (releasedConnection != connection || releasedConnection.isClosed())
+                return; // connection is lost or closed already
+
+            if (--activeCalls > 0)
+                return;
+
+            discoveryHandler.postDelayed(idleRunnable, idleTimeout);
+        }
+    }
+
+    // packet is not delivered: connection is dropped, so next call connects again
+    private BleLink.FailureListener linkFailureListener = new BleLink.FailureListener() {
+        @Override
+        public void onLinkFailed(BleLink link) {
+            BleConnection failedConnection;
+            synchronized (BleRpcConnectionFactory.this) {
+                failedConnection = connection;
+                if (failedConnection == null || failedConnection.getLink() != link)
+                    return; // closed already
+
+                discoveryHandler.removeCallbacks(idleRunnable);
+                connection = null;
+                activeCalls = 0; // calls in progress fail
+            }
+
+            logger.warn("Packet is not delivered, disconnecting");
+            failedConnection.onDisconnected(); // not unsubscribed as the link does not work
+            failedConnection.getGatt().disconnect(); // GATT is closed when disconnected
+        }
+    };
+
+    private Runnable idleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            BleConnection closedConnection;
+            synchronized (BleRpcConnectionFactory.this) {
+                if (activeCalls > 0 || connection == null)
+                    return; // used again
+
+                closedConnection = connection;
+                connection = null;
+            }
 
+            closeConnection(closedConnection, null);
+        }
+    };
+
+    /**
+     * Close established BLE connection (calls in progress fail), does not block
+     */
+    public void closeConnection() {
+        closeConnection(null);
+    }
+
+    /**
+     * @param callback invoked when the connection is closed (right away if not connected)
+     */
+    private void closeConnection(Runnable callback) {
+        BleConnection closedConnection;
+        synchronized (this) {
+            discoveryHandler.removeCallbacks(idleRunnable);
+            closedConnection = connection;
+            connection = null;
+            activeCalls = 0; // calls in progress fail
+        }
+
+        if (closedConnection != null)
+            closeConnection(closedConnection, callback);
+        else if (callback != null)
+            callback.run();
+    }
+
+    // does not block: unsubscription is confirmed on the callback thread
+    private void closeConnection(final BleConnection closedConnection, final Runnable callback) {
+        closingConnections.add(closedConnection);
+        closedConnection.close(new Runnable() {
+            @Override
+            public void run() {
+                closingConnections.remove(closedConnection);
+                if (callback != null)
+                    callback.run();
+            }
+        });
+    }
+
+    // create new BLE connection
+    private BleConnection connect() throws IOException {
         // turn BLE on
         if (!adapter.isEnabled())
             adapter.enable();
 
+        // known device: connect directly
+        BluetoothDevice device = bluetoothDevice;
+        if (device == null && lastDeviceAddress != null && BluetoothAdapter.checkBluetoothAddress(lastDeviceAddress))
+            device = adapter.getRemoteDevice(lastDeviceAddress);
+
+        if (device != null) {
+            try {
+                return connectDirectly(device);
+            } catch (IOException e) {
+                logger.debug("Failed to connect directly, scanning: " + e.getMessage());
+            } catch (RuntimeException e) {
+                logger.debug("Failed to connect directly, scanning: " + e.getMessage());
+            }
+        }
+
+        return connectScanning();
+    }
+
+    private void onConnected(BleConnection newConnection, long started, String method) {
+        lastConnectTime = System.currentTimeMillis() - started;
+        lastDeviceAddress = newConnection.getGatt().getDevice().getAddress();
+
+        logger.debug(MessageFormat.format("Connected to {0} in {1} ms ({2})", lastDeviceAddress, lastConnectTime, method));
+    }
+
+    private BleConnection connectDirectly(BluetoothDevice device) throws IOException {
+        connectionThrowable = null;
+        connected.set(false);
+
+        long started = System.currentTimeMillis();
+
+        boolean useAutoConnect = autoConnect && device.getBondState() == BluetoothDevice.BOND_BONDED;
+        gattConnection = device.connectGatt(context, useAutoConnect, this);
+
+        if (!waitConnected(started)) {
+            abortConnect();
+            throw new DiscoveryTimeoutException(device, discoveryTimeout);
+        }
+        checkConnected();
+
+        onConnected(connection, started, "direct");
+        return connection;
+    }
+
+    private BleConnection connectScanning() throws IOException {
+        this.serverDiscovered = false;
+
+        connectionThrowable = null;
+        connected.set(false);
+
         // start connection
         long discoveryStarted = System.currentTimeMillis();
 
         adapter.startLeScan(new UUID[]{ serviceUUID }, connectScanCallback);
 
         // wait for connected
+        if (!waitConnected(discoveryStarted)) {
+            adapter.stopLeScan(connectScanCallback);
+            abortConnect();
+            throw new DiscoveryTimeoutException(bluetoothDevice, discoveryTimeout);
+        }
+        checkConnected();
+
+        onConnected(connection, discoveryStarted, "scan");
+        return connection;
+    }
+
+    // returns false if not connected within discovery timeout
+    private boolean waitConnected(long started) {
         while (!connected.get()) {
             try {
                 Thread.sleep(10);
@@ -238,18 +761,40 @@ public class BleRpcConnectionFactory extends BluetoothGattCallback implements Rp
             }
 
             // check timeout
-            if ((System.currentTimeMillis() - discoveryStarted) > discoveryTimeout) {
-                adapter.stopLeScan(connectScanCallback);
-                throw new DiscoveryTimeoutException(bluetoothDevice, discoveryTimeout);
-            }
+            if ((System.currentTimeMillis() - started) > discoveryTimeout)
+                return false;
         }
+        return true;
+    }
 
+    private void checkConnected() {
         if (connectionThrowable != null) {
             connected.set(false);
+            abortConnect();
             throw new RuntimeException(connectionThrowable);
         }
+    }
 
-        return connection;
+    // connecting failed: drop the connection built so far (it's not handed out) and the GATT link
+    private void abortConnect() {
+        BluetoothGatt gatt = gattConnection;
+        gattConnection = null; // late callbacks of the link are ignored
+
+        BleConnection staleConnection;
+        synchronized (this) {
+            staleConnection = connection;
+            if (staleConnection != null && staleConnection.getGatt() == gatt)
+                connection = null;
+            else
+                staleConnection = null;
+        }
+
+        if (staleConnection != null)
+            staleConnection.onDisconnected(); // stops ACK check, does not block
+        if (gatt != null) {
+            gatt.disconnect();
+            gatt.close();
+        }
     }
 
     /**
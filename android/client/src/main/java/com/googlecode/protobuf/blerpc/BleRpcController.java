@@ -0,0 +1,102 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RpcController for the calls of {@link BleRpcChannel} (central role) supporting cancellation
+ *
+ * {@link #startCancel()} cancels the call in progress: the server is notified and stops sending the response,
+ * `done` (or stream listener) is invoked with failure on the thread canceling the call.
+ * {@link #notifyOnCancel(RpcCallback)} callbacks are invoked on that thread too, after the call is canceled.
+ */
+public class BleRpcController implements RpcController {
+
+    public static final String CANCELED = "Call canceled";
+
+    private String reason;
+    private boolean failed;
+    private boolean canceled;
+    private Runnable cancelHandler; // cancels the call in progress
+    private final List<RpcCallback<Object>> cancelCallbacks = new ArrayList<RpcCallback<Object>>();
+
+    @Override
+    public synchronized void reset() {
+        reason = null;
+        failed = false;
+        canceled = false;
+        cancelHandler = null;
+        cancelCallbacks.clear();
+    }
+
+    @Override
+    public synchronized boolean failed() {
+        return failed;
+    }
+
+    @Override
+    public synchronized String errorText() {
+        return reason;
+    }
+
+    @Override
+    public void startCancel() {
+        Runnable handler;
+        List<RpcCallback<Object>> callbacks;
+        synchronized (this) {
+            canceled = true;
+            handler = cancelHandler;
+            cancelHandler = null;
+            callbacks = new ArrayList<RpcCallback<Object>>(cancelCallbacks);
+            cancelCallbacks.clear();
+        }
+
+        if (handler != null)
+            handler.run();
+
+        for (RpcCallback<Object> eachCallback : callbacks)
+            eachCallback.run(null);
+    }
+
+    @Override
+    public synchronized void setFailed(String reason) {
+        this.reason = reason;
+        this.failed = true;
+    }
+
+    /**
+     * @return true if {@link #startCancel()} is invoked (client side, unlike {@link RpcController})
+     */
+    @Override
+    public synchronized boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * Callback is invoked once when {@link #startCancel()} is invoked (right away if already canceled)
+     */
+    @Override
+    public void notifyOnCancel(RpcCallback<Object> callback) {
+        synchronized (this) {
+            if (!canceled) {
+                cancelCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run(null);
+    }
+
+    // call started with the controller (invoked right away if already canceled)
+    void setCancelHandler(Runnable cancelHandler) {
+        synchronized (this) {
+            if (!canceled) {
+                this.cancelHandler = cancelHandler;
+                return;
+            }
+        }
+        cancelHandler.run();
+    }
+}
@@ -5,32 +5,77 @@ import android.bluetooth.BluetoothGattCharacteristic;
 
 /**
  * Output stream for BLE central role
+ *
+ * Packets are written through GATT operation queue of the connection.
+ * Write operations are reused (one per packet in flight), so nothing is allocated per packet.
  */
 public class ClientBleOutputStream extends BleOutputStream {
 
-    private BluetoothGatt connection;
+    public static final int NO_RESPONSE_WINDOW = 4; // packets
 
-    public ClientBleOutputStream(int buffer_size, BluetoothGattCharacteristic characteristic, BluetoothGatt connection) {
+    private GattQueue queue;
+
+    public ClientBleOutputStream(int buffer_size, BluetoothGattCharacteristic characteristic, GattQueue queue) {
         super(buffer_size, characteristic);
-        this.connection = connection;
+        this.queue = queue;
+    }
+
+    /**
+     * Use "write without response" with few packets in flight (if supported by the server)
+     * @return true if enabled
+     */
+    public boolean enableWriteWithoutResponse(int window) {
+        if ((getCharacteristic().getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0)
+            return false; // not supported by the server
+
+        getCharacteristic().setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        setWindow(window);
+        return true;
+    }
+
+    private GattQueue.Callback writeCallback = new GattQueue.Callback() {
+        @Override
+        public void onFinished(boolean success) {
+            if (success)
+                notifyWritten();
+            else
+                notifyFailed();
+        }
+    };
+
+    /**
+     * Write of a packet (finished before the operation is used again, as at most `window` packets are in flight)
+     */
+    private class WriteOperation extends GattQueue.Operation {
+        private byte[] value;
+
+        WriteOperation() {
+            super(GattQueue.WRITE_CHARACTERISTIC, GattQueue.OPERATION_TIMEOUT, writeCallback);
+        }
+
+        @Override
+        protected boolean execute(BluetoothGatt gatt) {
+            getCharacteristic().setValue(value);
+            return gatt.writeCharacteristic(getCharacteristic());
+        }
     }
 
-    private static final int WRITE_ATTEMPTS = 3;
+    private WriteOperation[] writeOperations = new WriteOperation[MAX_WINDOW];
+    private int nextWriteOperation;
 
     @Override
-    protected boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-        // trying to write few times
-        for (int i=0; i<WRITE_ATTEMPTS; i++) {
-            if (connection.writeCharacteristic(characteristic))
-                return true;
-
-            // sleep and do another attempt
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-            }
+    protected boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value) {
+        // packet array is not reused by the stream until the write is finished, so it's not copied
+        WriteOperation operation = writeOperations[nextWriteOperation];
+        if (operation == null) {
+            operation = new WriteOperation();
+            writeOperations[nextWriteOperation] = operation;
         }
+        operation.value = value;
+        if (!queue.enqueue(operation))
+            return false;
 
-        return false;
+        nextWriteOperation = (nextWriteOperation + 1) % writeOperations.length;
+        return true;
     }
 }
@@ -0,0 +1,253 @@
+package com.googlecode.protobuf.blerpc;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+
+/**
+ * Serial queue of GATT operations (Android allows only one outstanding GATT operation per connection)
+ *
+ * Next operation is executed as soon as the callback of the previous one arrives (see {@link #onCompleted(int, int)})
+ * or its timeout expires. Operations can be enqueued from any thread.
+ */
+public class GattQueue {
+
+    private Logger logger = LoggerFactory.getLogger(GattQueue.class.getSimpleName());
+
+    public static final int OPERATION_TIMEOUT = 1000; // 1 second
+
+    public static final int WRITE_CHARACTERISTIC = 0;
+    public static final int READ_CHARACTERISTIC = 1;
+    public static final int WRITE_DESCRIPTOR = 2;
+    public static final int REQUEST_MTU = 3;
+
+    /**
+     * Invoked when operation is finished
+     */
+    public interface Callback {
+        /**
+         * @param success true if operation callback arrived with success status,
+         *                false if failed to start, failed status, timeout or queue is closed
+         */
+        void onFinished(boolean success);
+    }
+
+    /**
+     * GATT operation
+     */
+    public static abstract class Operation {
+        private final int type;
+        private final int timeout;
+        private final Callback callback;
+
+        protected Operation(int type, int timeout, Callback callback) {
+            this.type = type;
+            this.timeout = timeout;
+            this.callback = callback;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * Start operation
+         * @return false if not started
+         */
+        protected abstract boolean execute(BluetoothGatt gatt);
+
+        private void finish(boolean success) {
+            if (callback != null)
+                callback.onFinished(success);
+        }
+    }
+
+    /**
+     * Write characteristic
+     * @param value value to write (not copied)
+     */
+    public static Operation writeCharacteristic(final BluetoothGattCharacteristic characteristic, final byte[] value, Callback callback) {
+        return new Operation(WRITE_CHARACTERISTIC, OPERATION_TIMEOUT, callback) {
+            @Override
+            protected boolean execute(BluetoothGatt gatt) {
+                characteristic.setValue(value);
+                return gatt.writeCharacteristic(characteristic);
+            }
+        };
+    }
+
+    /**
+     * Read characteristic (value is available in the callback)
+     */
+    public static Operation readCharacteristic(final BluetoothGattCharacteristic characteristic, Callback callback) {
+        return new Operation(READ_CHARACTERISTIC, OPERATION_TIMEOUT, callback) {
+            @Override
+            protected boolean execute(BluetoothGatt gatt) {
+                return gatt.readCharacteristic(characteristic);
+            }
+        };
+    }
+
+    /**
+     * Write descriptor
+     */
+    public static Operation writeDescriptor(final BluetoothGattDescriptor descriptor, final byte[] value, Callback callback) {
+        return new Operation(WRITE_DESCRIPTOR, OPERATION_TIMEOUT, callback) {
+            @Override
+            protected boolean execute(BluetoothGatt gatt) {
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor);
+            }
+        };
+    }
+
+    /**
+     * Request ATT MTU (Android 21+)
+     */
+    public static Operation requestMtu(final int mtu, int timeout, Callback callback) {
+        return new Operation(REQUEST_MTU, timeout, callback) {
+            @Override
+            protected boolean execute(BluetoothGatt gatt) {
+                return gatt.requestMtu(mtu);
+            }
+        };
+    }
+
+    private final BluetoothGatt gatt;
+    private final Handler handler; // for timeouts
+
+    private final ArrayDeque<Operation> operations = new ArrayDeque<Operation>();
+    private Operation current;
+    private long currentDeadline; // time (ms) current operation times out
+    private boolean closed;
+
+    // one runnable for all the operations (nothing is allocated per operation)
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    public GattQueue(BluetoothGatt gatt, Handler handler) {
+        this.gatt = gatt;
+        this.handler = handler;
+    }
+
+    /**
+     * Add operation to the queue (it's started immediately if no operation is in progress).
+     * Callback is never invoked from this method.
+     * @return false if queue is closed (operation is dropped and callback is not invoked)
+     */
+    public boolean enqueue(Operation operation) {
+        synchronized (this) {
+            if (closed)
+                return false;
+
+            operations.add(operation);
+        }
+
+        next();
+        return true;
+    }
+
+    // start next operation if no operation is in progress
+    private void next() {
+        while (true) {
+            final Operation failed;
+            synchronized (this) {
+                if (current != null || operations.isEmpty())
+                    return;
+
+                current = operations.poll();
+                if (current.execute(gatt)) {
+                    currentDeadline = System.currentTimeMillis() + current.timeout;
+                    handler.postDelayed(timeoutRunnable, current.timeout);
+                    return;
+                }
+
+                // failed to start
+                failed = current;
+                current = null;
+            }
+
+            logger.warn("Failed to start GATT operation " + failed.type);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    failed.finish(false);
+                }
+            });
+        }
+    }
+
+    // callback of current operation did not arrive in time
+    private void onTimeout() {
+        Operation operation;
+        synchronized (this) {
+            if (current == null)
+                return; // already completed
+
+            // operation completed and the next one started while the timeout was being run
+            long remaining = currentDeadline - System.currentTimeMillis();
+            if (remaining > 0) {
+                handler.postDelayed(timeoutRunnable, remaining);
+                return;
+            }
+
+            operation = current;
+            current = null;
+        }
+
+        logger.warn("GATT operation " + operation.type + " timeout");
+        operation.finish(false);
+        next();
+    }
+
+    /**
+     * To be invoked from outside when GATT operation callback arrives
+     * @param type operation type
+     * @param status GATT status
+     * @return true if operation in progress is completed
+     */
+    public boolean onCompleted(int type, int status) {
+        Operation operation;
+        synchronized (this) {
+            if (current == null || current.type != type)
+                return false; // not requested by the queue (eg. MTU changed by the remote side)
+
+            operation = current;
+            current = null;
+            handler.removeCallbacks(timeoutRunnable);
+        }
+
+        operation.finish(status == BluetoothGatt.GATT_SUCCESS);
+        next();
+        return true;
+    }
+
+    /**
+     * Finish all the operations with failure (eg. when BLE link is lost)
+     */
+    public void close() {
+        ArrayDeque<Operation> failed = new ArrayDeque<Operation>();
+        synchronized (this) {
+            closed = true;
+            if (current != null) {
+                failed.add(current);
+                current = null;
+                handler.removeCallbacks(timeoutRunnable);
+            }
+            failed.addAll(operations);
+            operations.clear();
+        }
+
+        for (Operation eachOperation : failed)
+            eachOperation.finish(false);
+    }
+}
@@ -0,0 +1,53 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batch of RPC calls sent as one call
+ *
+ * Batch request is a request of {@link #SERVICE_NAME} service: method is {@link #METHOD_PARALLEL} or {@link #METHOD_SEQUENTIAL}
+ * and request bytes are the requests of the calls (delimited).
+ * Batch response bytes are the responses of the calls in the same order (delimited).
+ */
+public class BleBatch {
+
+    public static final String SERVICE_NAME = "blerpc.Batch";
+    public static final String METHOD_PARALLEL = "parallel"; // calls are run at the same time
+    public static final String METHOD_SEQUENTIAL = "sequential"; // calls are run one by one in order
+
+    public static boolean isBatch(String serviceName) {
+        return SERVICE_NAME.equals(serviceName);
+    }
+
+    public static ByteString writeMessages(List<? extends MessageLite> messages) throws IOException {
+        ByteString.Output output = ByteString.newOutput();
+        for (MessageLite eachMessage : messages)
+            eachMessage.writeDelimitedTo(output);
+        return output.toByteString();
+    }
+
+    public static List<SocketRpcProtos.Request> readRequests(ByteString bytes) throws IOException {
+        List<SocketRpcProtos.Request> requests = new ArrayList<SocketRpcProtos.Request>();
+        InputStream input = bytes.newInput();
+        SocketRpcProtos.Request request;
+        while ((request = SocketRpcProtos.Request.parseDelimitedFrom(input)) != null)
+            requests.add(request);
+        return requests;
+    }
+
+    public static List<SocketRpcProtos.Response> readResponses(ByteString bytes) throws IOException {
+        List<SocketRpcProtos.Response> responses = new ArrayList<SocketRpcProtos.Response>();
+        InputStream input = bytes.newInput();
+        SocketRpcProtos.Response response;
+        while ((response = SocketRpcProtos.Response.parseDelimitedFrom(input)) != null)
+            responses.add(response);
+        return responses;
+    }
+}
@@ -0,0 +1,427 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Channel of BLE link (one RPC call)
+ *
+ * Channel is released when closed by both sides (see {@link BlePacket#TYPE_CLOSE}).
+ * Besides blocking {@link RpcConnectionFactory.Connection} methods it can be used without blocking:
+ * see {@link #send(byte[], BleOutputStream.WriteCallback)} and {@link ReceiveListener}.
+ * Messages are sent as frames of the link (see {@link BleLink#encodeMessage(byte[])}) in segments:
+ * [flags][length (varint)][bytes], the last segment of the message has {@link #FLAG_END} set.
+ * So the message is read as soon as its last segment is received (delimited or not).
+ * The client can cancel the call (see {@link #cancel()}), the server is notified with {@link CancelListener}.
+ */
+public class BleChannel implements RpcConnectionFactory.Connection {
+
+    private static Logger logger = LoggerFactory.getLogger(BleChannel.class.getSimpleName());
+
+    public static final int FLAG_END = 0x01; // last segment of the message
+
+    private final int id;
+    private final BleLink link;
+    private final BleInputStream in;
+    private final OutputStream out;
+    private final boolean delimited;
+
+    public int getId() {
+        return id;
+    }
+
+    public BleLink getLink() {
+        return link;
+    }
+
+    public BleInputStream getIn() {
+        return in;
+    }
+
+    public OutputStream getOut() {
+        return out;
+    }
+
+    /**
+     * @return delimited flag of the connection (messages are framed anyway)
+     */
+    public boolean isDelimited() {
+        return delimited;
+    }
+
+    /**
+     * Listener for incoming bytes (invoked on the thread delivering BLE packets, so it must not block)
+     */
+    public interface ReceiveListener {
+        /**
+         * Invoked when new bytes are available in the input stream, the other side closed the channel
+         * or BLE link is lost (see {@link #isRemoteClosed()})
+         */
+        void onReceived(BleChannel channel);
+    }
+
+    private volatile ReceiveListener receiveListener;
+
+    public void setReceiveListener(ReceiveListener receiveListener) {
+        this.receiveListener = receiveListener;
+    }
+
+    /**
+     * Listener for the channel closed locally
+     */
+    public interface CloseListener {
+        void onClosed(BleChannel channel);
+    }
+
+    private CloseListener closeListener;
+
+    public void setCloseListener(CloseListener closeListener) {
+        this.closeListener = closeListener;
+    }
+
+    /**
+     * Listener for the call canceled by the client (invoked on the thread delivering BLE packets, so it must not block)
+     */
+    public interface CancelListener {
+        void onCanceled(BleChannel channel);
+    }
+
+    private final List<CancelListener> cancelListeners = new ArrayList<CancelListener>();
+
+    /**
+     * Listener is invoked right away if the call is already canceled
+     */
+    public void addCancelListener(CancelListener listener) {
+        synchronized (cancelListeners) {
+            if (!canceled) {
+                cancelListeners.add(listener);
+                return;
+            }
+        }
+        listener.onCanceled(this);
+    }
+
+    public BleChannel(int id, BleLink link, int inputBufferSize, boolean delimited) {
+        this.id = id;
+        this.link = link;
+        this.delimited = delimited;
+
+        final BleOutputStream linkOut = link.getOut();
+        in = new BleInputStream(inputBufferSize, BleInputStream.READ_TIMEOUT);
+        in.setCreditOutput(linkOut, id);
+
+        // writes bytes to this channel
+        out = new OutputStream() {
+            @Override
+            public void write(int i) throws IOException {
+                write(new byte[] { (byte) i }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] output, int offset, int length) throws IOException {
+                if (canceled)
+                    throw new IOException("Call is canceled");
+
+                if (localClosed || outputClosed)
+                    throw new IOException("Channel is closed");
+
+                linkOut.write(BleChannel.this.id, output, offset, length);
+            }
+        };
+    }
+
+    @Override
+    public void sendProtoMessage(MessageLite message) throws IOException {
+        // Write message
+        out.write(encodeMessage(message));
+        out.flush();
+    }
+
+    @Override
+    public void receiveProtoMessage(MessageLite.Builder messageBuilder) throws IOException {
+        // Read message
+        readMessage(in, messageBuilder);
+    }
+
+    /**
+     * @return bytes to send for the message (one segment)
+     */
+    public byte[] encodeMessage(MessageLite message) throws IOException {
+        byte[] frame = link.encodeMessage(message.toByteArray());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(frame.length + 6);
+        output.write(FLAG_END);
+        CodedOutputStream codedOutput = CodedOutputStream.newInstance(output);
+        codedOutput.writeRawVarint32(frame.length);
+        codedOutput.writeRawBytes(frame);
+        codedOutput.flush();
+        return output.toByteArray();
+    }
+
+    /**
+     * Read message sent by the other side (see {@link #encodeMessage(MessageLite)}),
+     * blocks until its last segment is received
+     * @param input channel input stream or bytes received
+     * @return false if end of stream is reached before the message
+     */
+    public boolean readMessage(InputStream input, MessageLite.Builder messageBuilder) throws IOException {
+        ByteArrayOutputStream frame = null; // segments read before the last one
+        while (true) {
+            int flags = input.read();
+            if (flags == -1) {
+                if (frame == null)
+                    return false;
+                throw new EOFException("Truncated message");
+            }
+
+            int firstByte = input.read();
+            if (firstByte == -1)
+                throw new EOFException("Truncated message");
+
+            // frame is the message (+ codec id) or the message compressed (smaller)
+            int segmentLength = CodedInputStream.readRawVarint32(firstByte, input);
+            if (segmentLength < 0 || (frame != null ? frame.size() : 0) + segmentLength > BleCodec.MAX_MESSAGE_SIZE + 1)
+                throw new IOException("Message is too large");
+
+            byte[] segment = new byte[segmentLength];
+            int offset = 0;
+            while (offset < segment.length) {
+                int read = input.read(segment, offset, segment.length - offset);
+                if (read < 0)
+                    throw new EOFException("Truncated message");
+                offset += read;
+            }
+
+            if ((flags & FLAG_END) == 0) {
+                if (frame == null)
+                    frame = new ByteArrayOutputStream();
+                frame.write(segment);
+                continue;
+            }
+
+            if (frame != null) {
+                frame.write(segment);
+                segment = frame.toByteArray();
+            }
+
+            messageBuilder.mergeFrom(link.decodeMessage(segment));
+            return true;
+        }
+    }
+
+    /**
+     * Get length of the message received completely (without blocking, see {@link #readMessage(InputStream, MessageLite.Builder)})
+     * @param bytes bytes received
+     * @return bytes of the first message or -1 if its last segment is not received yet
+     */
+    public static int getMessageLength(byte[] bytes, int offset, int length) throws IOException {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int segmentLength = getSegmentLength(bytes, i, end - i);
+            if (segmentLength < 0 || end - i < segmentLength)
+                return -1;
+
+            boolean last = isLastSegment(bytes, i);
+            i += segmentLength;
+            if (last)
+                return i - offset;
+        }
+        return -1;
+    }
+
+    /**
+     * Get length of the segment as soon as its header is received
+     * (so the bytes received are scanned once, see {@link #getMessageLength(byte[], int, int)})
+     * @param bytes bytes received, starting with the segment
+     * @return bytes of the segment with its header (may be not received completely yet) or -1 if its header is not received yet
+     */
+    public static int getSegmentLength(byte[] bytes, int offset, int length) throws IOException {
+        int end = offset + length;
+        int i = offset + 1; // flags
+
+        // segment length (varint)
+        int segmentLength = 0;
+        int shift = 0;
+        while (i < end) {
+            byte eachByte = bytes[i++];
+            segmentLength |= (eachByte & 0x7F) << shift;
+            if ((eachByte & 0x80) == 0)
+                return i - offset + segmentLength;
+
+            shift += 7;
+            if (shift > 28)
+                throw new IOException("Invalid segment length");
+        }
+        return -1;
+    }
+
+    /**
+     * @param bytes bytes received, starting with the segment
+     * @return true if the segment is the last one of the message
+     */
+    public static boolean isLastSegment(byte[] bytes, int offset) {
+        return (bytes[offset] & FLAG_END) != 0;
+    }
+
+    /**
+     * Send bytes without blocking
+     * @param output bytes to send (not copied, so should not be modified until the callback is invoked)
+     * @param callback invoked when sent or failed
+     */
+    public void send(byte[] output, BleOutputStream.WriteCallback callback) {
+        if (localClosed || outputClosed || canceled) {
+            callback.onWritten(false);
+            return;
+        }
+
+        link.getOut().write(id, output, 0, output.length, callback);
+    }
+
+    // incoming packet is passed to the input stream
+    void onReceived() {
+        ReceiveListener listener = receiveListener;
+        if (listener != null)
+            listener.onReceived(this);
+    }
+
+    private volatile boolean localClosed = false;
+    private volatile boolean remoteClosed = false;
+    private volatile boolean outputClosed = false; // CLOSE is sent
+    private volatile boolean canceled = false;
+
+    boolean isReleasable() {
+        return localClosed && remoteClosed;
+    }
+
+    /**
+     * @return true if nothing is received anymore (the other side closed the channel or BLE link is lost)
+     */
+    public boolean isRemoteClosed() {
+        return remoteClosed;
+    }
+
+    /**
+     * To be invoked from outside when the other side closed the channel
+     */
+    public void onRemoteClosed() {
+        logger.debug("channel " + id + " closed by the other side");
+
+        remoteClosed = true;
+        in.endOfStream(); // the bytes received are still read
+        link.releaseChannel(this);
+        onReceived();
+    }
+
+    /**
+     * To be invoked from outside when BLE link is lost
+     */
+    public void onLinkClosed() throws IOException {
+        localClosed = true;
+        remoteClosed = true;
+        in.close();
+        onReceived();
+    }
+
+    /**
+     * @return true if the call is canceled by the client
+     */
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * Cancel the call (client side): the bytes not sent yet are dropped, the server is notified
+     * (see {@link BlePacket#TYPE_CANCEL}) and the channel is closed
+     */
+    public void cancel() throws IOException {
+        if (localClosed)
+            return;
+
+        logger.debug("channel " + id + " canceled");
+
+        canceled = true;
+        link.getOut().cancelWrite(id);
+        link.getOut().sendCancel(id);
+        close();
+    }
+
+    /**
+     * To be invoked from outside when the client canceled the call (server side):
+     * the bytes not sent yet are dropped, nothing is read anymore and cancel listeners are invoked
+     */
+    public void onCanceled() {
+        logger.debug("channel " + id + " canceled by the other side");
+
+        List<CancelListener> listeners;
+        synchronized (cancelListeners) {
+            if (canceled)
+                return;
+
+            canceled = true;
+            listeners = new ArrayList<CancelListener>(cancelListeners);
+            cancelListeners.clear();
+        }
+
+        link.getOut().cancelWrite(id);
+        try {
+            in.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        onReceived();
+
+        for (CancelListener eachListener : listeners)
+            eachListener.onCanceled(this);
+    }
+
+    /**
+     * Notify the other side nothing is sent to the channel anymore, while still receiving
+     * (channel should have no write in progress)
+     */
+    public void closeOutput() {
+        if (localClosed || outputClosed)
+            return;
+
+        logger.debug("channel " + id + " output closed");
+
+        outputClosed = true;
+        link.getOut().sendClose(id);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (localClosed)
+            return;
+
+        logger.debug("channel " + id + " closed");
+
+        localClosed = true;
+        in.close();
+        if (!outputClosed) {
+            outputClosed = true;
+            link.getOut().sendClose(id);
+        }
+        link.releaseChannel(this);
+
+        if (closeListener != null)
+            closeListener.onClosed(this);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return localClosed;
+    }
+}
@@ -0,0 +1,28 @@
+package com.googlecode.protobuf.blerpc;
+
+import java.io.IOException;
+
+/**
+ * Compression codec for RPC messages (see {@link BleCompression})
+ *
+ * Codecs are shared by all the calls, so they should be thread-safe.
+ */
+public interface BleCodec {
+
+    /**
+     * Largest message decoded (bytes): the length is sent by the other side, so it's checked before decoding
+     */
+    int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    /**
+     * @return codec id sent to the other side (1..255)
+     */
+    int getId();
+
+    byte[] encode(byte[] data) throws IOException;
+
+    /**
+     * @throws IOException if data is corrupted or decoded message is larger than {@link #MAX_MESSAGE_SIZE}
+     */
+    byte[] decode(byte[] data) throws IOException;
+}
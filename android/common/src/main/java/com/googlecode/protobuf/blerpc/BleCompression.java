@@ -0,0 +1,78 @@
+package com.googlecode.protobuf.blerpc;
+
+/**
+ * Compression of RPC messages negotiated per BLE link
+ *
+ * Both sides send the ids of the codecs they can decode (see {@link BlePacket#TYPE_CODECS}),
+ * then every message is compressed with the first codec the other side supports
+ * unless it's shorter than the threshold or does not get shorter.
+ * Message frame: [codec id (0 if not compressed)] [message bytes ...]
+ */
+public class BleCompression {
+
+    public static final int NO_CODEC = 0;
+    public static final int MAX_CODECS = 256; // codec id is 1 byte
+    public static final int DEFAULT_THRESHOLD = 64; // bytes (shorter messages are rarely compressed)
+
+    private final BleCodec[] codecs;
+    private final BleCodec[] codecsById = new BleCodec[MAX_CODECS];
+
+    private volatile int threshold = DEFAULT_THRESHOLD;
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Messages shorter than `threshold` bytes are sent not compressed
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param codecs codecs in order of preference
+     */
+    public BleCompression(BleCodec... codecs) {
+        this.codecs = codecs.clone();
+        for (BleCodec eachCodec : codecs) {
+            int id = eachCodec.getId();
+            if (id <= NO_CODEC || id >= codecsById.length)
+                throw new IllegalArgumentException("Invalid codec id " + id);
+
+            codecsById[id] = eachCodec;
+        }
+    }
+
+    /**
+     * LZF (fast) is preferred to deflate
+     */
+    public static BleCompression createDefault() {
+        return new BleCompression(new LzfCodec(), new DeflateCodec());
+    }
+
+    public int[] getCodecIds() {
+        int[] ids = new int[codecs.length];
+        for (int i = 0; i < codecs.length; i++)
+            ids[i] = codecs[i].getId();
+        return ids;
+    }
+
+    /**
+     * @return codec or null if not supported
+     */
+    public BleCodec getCodec(int id) {
+        return codecsById[id & 0xFF];
+    }
+
+    /**
+     * @param remoteCodecs codecs supported by the other side (indexed by codec id)
+     * @return codec to compress messages to the other side (null if none)
+     */
+    public BleCodec selectCodec(boolean[] remoteCodecs) {
+        for (BleCodec eachCodec : codecs)
+            if (remoteCodecs[eachCodec.getId()])
+                return eachCodec;
+        return null;
+    }
+}
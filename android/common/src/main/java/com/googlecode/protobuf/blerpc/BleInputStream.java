@@ -5,131 +5,268 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Input stream for BLE
+ *
+ * Incoming fragments are kept as-is in a lock-free single-producer/single-consumer queue:
+ * {@link #doRead(byte[], int)} is the producer (BLE callback thread) doing O(1) work per fragment,
+ * read() methods are the consumer copying directly from the fragments into the caller's buffer
+ * and dropping each fragment as soon as it is fully read.
+ * Queue nodes are pooled: the producer reuses the nodes the consumer has passed, so nothing is allocated per packet
+ * once the queue has grown to the most fragments buffered at the same time.
+ * Waiting reader is parked and unparked directly by the producer, no polling is involved.
+ *
+ * Sender is granted credit (see {@link BlePacket#TYPE_CREDIT}) as the reader frees buffer space,
+ * so max buffer size is never exceeded by the sender respecting it: the producer never blocks
+ * (packet exceeding it is dropped as protocol error, see {@link #doRead(byte[], int)}).
+ * When the sender closes the channel (see {@link #endOfStream()}) the bytes received are still read before end of stream.
  */
 public class BleInputStream extends InputStream {
 
     private Logger logger = LoggerFactory.getLogger(BleInputStream.class.getSimpleName());
 
-    public static final int INPUT_BUFFER_SIZE  = 10 * 1024; // 10 Kb
+    public static final int INPUT_BUFFER_SIZE  = 64 * 1024; // 64 Kb (max bytes received but not read yet)
     public static final int READ_TIMEOUT = 5 * 60 * 1000; // 5 minutes (for debugging) !
 
-    private byte[] buffer;
-    private AtomicInteger lastIndex = new AtomicInteger(0); // last written byte index
-    private int readIndex; // first byte index to read from
+    /**
+     * Queue node: received packet payload (packet bytes starting from `offset`)
+     */
+    private static class Fragment {
+        byte[] data;
+        int offset;
+        volatile Fragment next;
+    }
+
+    // queue: `head` is the node read last (its fragment is dropped), fragments to read follow it,
+    // nodes from `firstNode` up to `head` are read and reused by the producer
+    private volatile Fragment head = new Fragment(); // consumer only
+    private Fragment tail = head; // producer only
+    private Fragment firstNode = head; // producer only
+    private Fragment headCopy = head; // producer only (last known `head`)
+    private final int maxBufferSize;
+
+    private byte[] fragment; // fragment being read (consumer only)
+    private int fragmentOffset; // next byte index to read in the fragment (consumer only)
+    private volatile long writePosition; // total bytes received (producer only)
+    private volatile long readPosition;  // total bytes read (consumer only)
+    private volatile Thread waitingReader;
     private int readTimeout;
 
-    public int getBufferSize() {
-        return buffer.length;
+    private BleOutputStream creditOutput;
+    private int creditChannel;
+    private long grantedPosition = BlePacket.INITIAL_CREDIT; // total bytes the sender is allowed to send (consumer only)
+    private final int creditThreshold;
+
+    /**
+     * Output stream of the same connection to send credit packets to the sender
+     * @param channel channel of this input stream
+     */
+    public void setCreditOutput(BleOutputStream creditOutput, int channel) {
+        this.creditOutput = creditOutput;
+        this.creditChannel = channel;
     }
 
-    private void _reset() {
-        lastIndex.set(-1);
-        readIndex = -1;
+    /**
+     * @return max bytes received but not read yet (credit granted to the sender)
+     */
+    public int getBufferSize() {
+        return maxBufferSize;
     }
 
-    public BleInputStream(int bufferSize, int timeOut) {
-        buffer = new byte[bufferSize];
+    public BleInputStream(int maxBufferSize, int timeOut) {
+        this.maxBufferSize = maxBufferSize;
         this.readTimeout = timeOut;
-        _reset();
+        this.creditThreshold = Math.max(1, maxBufferSize / 4);
     }
 
     @Override
     public int available() throws IOException {
-        return lastIndex.get() - readIndex;
+        return _available();
     }
 
+    private int _available() {
+        return (int) (writePosition - readPosition);
+    }
+
+    /**
+     * Discards all the bytes received but not read yet
+     */
     @Override
     public synchronized void reset() throws IOException {
-        _reset();
+        long position = writePosition;
+        while (readPosition < position) {
+            int skipped = currentFragment().length - fragmentOffset;
+            fragment = null;
+            readPosition += skipped;
+        }
+        grantCredit();
     }
 
-    @Override
-    public int read() throws IOException {
-        logger.debug("read()");
+    // returns fragment having unread bytes (1 byte at least should be available)
+    private byte[] currentFragment() {
+        if (fragment == null || fragmentOffset == fragment.length) {
+            Fragment next = head.next;
+            fragment = next.data;
+            fragmentOffset = next.offset;
+            next.data = null; // packet is not referenced by the queue
+            head = next; // previous node can be reused by the producer
+        }
+        return fragment;
+    }
 
-        if (closed) {
-            logger.debug("end of stream");
-            return -1; // end of stream
+    // queue node read already or new one (producer only)
+    private Fragment obtainNode() {
+        if (firstNode == headCopy) {
+            headCopy = head;
+            if (firstNode == headCopy)
+                return new Fragment(); // all the nodes are in use
         }
 
-        // should block until 1 byte at least is received
-        while (available() == 0 || closed) {
-            if (closed)
-                return -1; // end of stream
+        Fragment node = firstNode;
+        firstNode = node.next;
+        return node;
+    }
+
+    // allow sender to send as many bytes as the buffer can hold after reading
+    private void grantCredit() {
+        if (creditOutput == null)
+            return;
+
+        long credit = readPosition + maxBufferSize - grantedPosition;
+        if (credit < creditThreshold)
+            return; // not worth a packet yet
+
+        credit = Math.min(credit, BlePacket.MAX_CREDIT);
+        grantedPosition += credit;
+        creditOutput.sendCredit(creditChannel, (int) credit);
+    }
+
+    // blocks until 1 byte at least is received, returns false for end of stream
+    private boolean waitAvailable() throws IOException {
+        if (_available() > 0)
+            return true;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeout);
+        waitingReader = Thread.currentThread();
+        try {
+            while (_available() == 0) {
+                if (closed)
+                    return false;
+
+                if (finished)
+                    return _available() > 0; // bytes could be received right before
 
-            // block thread
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false; // timeout: end of stream
+
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted())
+                    throw new InterruptedIOException("Interrupted while waiting for incoming bytes");
             }
+            return true;
+        } finally {
+            waitingReader = null;
         }
+    }
+
+    @Override
+    public int read() throws IOException {
+        logger.debug("read()");
 
-        int readByte = buffer[++readIndex];
+        if (closed || !waitAvailable()) {
+            logger.debug("end of stream");
+            return -1; // end of stream
+        }
 
-        // check need reset indices
-        checkReset();
+        int readByte = currentFragment()[fragmentOffset++] & 0xFF;
+        readPosition++;
+        grantCredit();
 
         logger.debug("read() finished");
 
         return readByte;
     }
 
-    private void checkReset() throws IOException {
-        if (available() == 0)
-            _reset();
-    }
-
     @Override
     public int read(byte[] output) throws IOException {
         return read(output, 0, output.length);
     }
 
+    /**
+     * Blocks until 1 byte at least is received and returns all the bytes available (up to `length`)
+     */
     @Override
     public int read(byte[] output, int offset, int length) throws IOException {
-        logger.debug("read() requested length=" + length);
+        if (logger.isDebugEnabled())
+            logger.debug("read() requested length=" + length);
 
-        if (closed)
-            return -1; // end of stream
+        if (length == 0)
+            return 0;
 
-        long started = System.currentTimeMillis();
-
-        // waiting stream to have requested length
-        while (available() < length) {
-
-            if ((System.currentTimeMillis() - started) > readTimeout)
-                return -1; // end of stream
+        if (closed || !waitAvailable())
+            return -1; // end of stream
 
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) { }
+        int readLength = Math.min(length, _available());
+        int copied = 0;
+        while (copied < readLength) {
+            byte[] source = currentFragment();
+            int chunk = Math.min(readLength - copied, source.length - fragmentOffset);
+            System.arraycopy(source, fragmentOffset, output, offset + copied, chunk);
+            fragmentOffset += chunk;
+            copied += chunk;
         }
+        readPosition += readLength;
+        grantCredit();
 
-        System.arraycopy(buffer, readIndex + 1, output, offset, length);
-        readIndex += length;
-
-        // check need reset indices
-        _reset();
-
-        return length;
+        return readLength;
     }
 
     /**
-     * To be invoked from outside when incoming bytes arrive
-     * @param value
+     * To be invoked from outside (single thread) when incoming bytes arrive, never blocks.
+     * The fragment is queued without copying, so it must not be modified by the caller afterwards.
+     * @param value incoming packet
+     * @param offset first payload byte index in the packet
+     * @return false if the packet is dropped as max buffer size would be exceeded (the sender ignored its credit)
      */
-    public synchronized void doRead(byte[] value) {
-        logger.debug("doRead() length=" + value.length);
+    public boolean doRead(byte[] value, int offset) {
+        int length = value.length - offset;
+        if (logger.isDebugEnabled())
+            logger.debug("doRead() length=" + length);
+
+        if (length <= 0 || closed)
+            return true;
+
+        if (_available() + length > maxBufferSize)
+            return false;
+
+        Fragment node = obtainNode();
+        node.data = value;
+        node.offset = offset;
+        node.next = null;
+        tail.next = node;
+        tail = node;
+        writePosition += length; // publishes queued fragment to the reader (single producer)
+        LockSupport.unpark(waitingReader);
+        return true;
+    }
 
-        // append to the buffer
-        System.arraycopy(value, 0, buffer, lastIndex.get() + 1, value.length);
-        lastIndex.addAndGet(value.length);
+    private volatile boolean finished = false;
+
+    /**
+     * To be invoked from outside when the sender does not send anymore:
+     * reader gets end of stream as soon as all the bytes received are read
+     */
+    public void endOfStream() {
+        finished = true;
+        LockSupport.unpark(waitingReader);
     }
 
-    private boolean closed = false;
+    private volatile boolean closed = false;
 
     @Override
     public void close() throws IOException {
@@ -138,8 +275,7 @@ public class BleInputStream extends InputStream {
         super.close();
 
         closed = true;
-        _reset();
-        buffer = null;
+        LockSupport.unpark(waitingReader);
     }
 
 
@@ -0,0 +1,366 @@
+package com.googlecode.protobuf.blerpc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * BLE link (GATT connection) shared by many channels
+ *
+ * Every RPC call has its own channel, so many calls are in flight at the same time
+ * and responses can complete in any order.
+ * Channels are opened by the client (see {@link #openChannel()}) and accepted by the server
+ * when the first packet of a new channel arrives (see {@link Listener}).
+ * Messages are compressed if both sides have compression set (see {@link #sendCodecs()}).
+ * Packets are delivered in order and acknowledged (see {@link BlePacket#TYPE_ACK}),
+ * packets received after a lost packet are kept until it's retransmitted.
+ */
+public class BleLink {
+
+    private Logger logger = LoggerFactory.getLogger(BleLink.class.getSimpleName());
+
+    /**
+     * Listener for the channels opened by the other side
+     */
+    public interface Listener {
+        void onChannelAccepted(BleChannel channel);
+    }
+
+    /**
+     * Listener for the link closed because a packet is not delivered after all the attempts
+     * or the other side sent more than its credit allows
+     * (the owner should drop the BLE connection, the other side does not get the packets anymore)
+     */
+    public interface FailureListener {
+        void onLinkFailed(BleLink link);
+    }
+
+    private volatile FailureListener failureListener;
+
+    public void setFailureListener(FailureListener failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    private final BleOutputStream out;
+    private final int inputBufferSize;
+    private final boolean delimited;
+    private final Listener listener;
+
+    public static final int ACK_INTERVAL = 8; // packets delivered per ACK
+
+    private final BleChannel[] channels = new BleChannel[BlePacket.MAX_CHANNELS];
+    private int channelCount;
+    private int nextChannel = 1; // BleOutputStream.DEFAULT_CHANNEL is not used for channels
+    private boolean closed;
+
+    public BleOutputStream getOut() {
+        return out;
+    }
+
+    // incoming packets (dispatching thread only)
+    private int nextSequence; // sequence of the next packet to deliver
+    private byte[][] outOfOrder = new byte[BleOutputStream.MAX_UNACKED][]; // received after a lost packet (index is sequence % MAX_UNACKED)
+    private int notAcknowledged; // packets delivered since the last ACK
+
+    private volatile BleCompression compression; // null if messages are not compressed
+    private volatile BleCodec remoteCodec; // codec to compress messages to the other side
+    private boolean codecsSent;
+
+    public BleCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Set before {@link #sendCodecs()} is invoked (or the other side sends its codecs)
+     */
+    public void setCompression(BleCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @param out output stream of the link
+     * @param inputBufferSize max bytes received but not read yet per channel
+     * @param listener listener to accept channels opened by the other side (null if not accepted)
+     */
+    public BleLink(BleOutputStream out, int inputBufferSize, boolean delimited, Listener listener) {
+        this.out = out;
+        this.inputBufferSize = inputBufferSize;
+        this.delimited = delimited;
+        this.listener = listener;
+
+        // packet is not delivered after all the attempts: calls fail
+        out.setFailureListener(new BleOutputStream.FailureListener() {
+            @Override
+            public void onDeliveryFailed() {
+                fail();
+            }
+        });
+    }
+
+    // close the link and notify the owner to drop BLE connection
+    private void fail() {
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        FailureListener listener = failureListener;
+        if (listener != null)
+            listener.onLinkFailed(this);
+    }
+
+    /**
+     * Open new channel
+     */
+    public synchronized BleChannel openChannel() throws IOException {
+        if (closed)
+            throw new IOException("BLE link is closed");
+
+        for (int i = 1; i < channels.length; i++) {
+            int id = nextChannel;
+            nextChannel = nextChannel % (channels.length - 1) + 1;
+            if (channels[id] == null)
+                return createChannel(id);
+        }
+
+        throw new IOException("Too many channels are open");
+    }
+
+    private BleChannel createChannel(int id) {
+        BleChannel channel = new BleChannel(id, this, inputBufferSize, delimited);
+        channels[id] = channel;
+        channelCount++;
+        out.openChannel(id);
+        return channel;
+    }
+
+    /**
+     * @return channels not released yet
+     */
+    public synchronized int getChannelCount() {
+        return channelCount;
+    }
+
+    // channel id can be reused when the channel is closed by both sides
+    synchronized void releaseChannel(BleChannel channel) {
+        if (channel.isReleasable() && channels[channel.getId()] == channel) {
+            channels[channel.getId()] = null;
+            channelCount--;
+        }
+    }
+
+    private synchronized BleChannel getChannel(int id) {
+        return channels[id];
+    }
+
+    /**
+     * Send the codecs this side can decode (once), the other side replies with its codecs
+     */
+    public void sendCodecs() {
+        synchronized (this) {
+            if (codecsSent)
+                return;
+            codecsSent = true;
+        }
+
+        BleCompression compression = this.compression;
+        out.sendCodecs(compression != null ? compression.getCodecIds() : new int[0]);
+    }
+
+    private void onCodecsReceived(int[] codecIds) {
+        BleCompression compression = this.compression;
+        if (compression != null) {
+            boolean[] remoteCodecs = new boolean[BleCompression.MAX_CODECS];
+            for (int eachId : codecIds)
+                remoteCodecs[eachId] = true;
+
+            remoteCodec = compression.selectCodec(remoteCodecs);
+            if (remoteCodec != null)
+                logger.debug("Messages are compressed with codec " + remoteCodec.getId());
+        }
+
+        sendCodecs(); // reply
+    }
+
+    /**
+     * Message frame to send (compressed if possible)
+     */
+    public byte[] encodeMessage(byte[] message) throws IOException {
+        BleCodec codec = remoteCodec;
+        BleCompression compression = this.compression;
+        if (codec != null && compression != null && message.length >= compression.getThreshold()) {
+            byte[] encoded = codec.encode(message);
+            if (encoded.length < message.length)
+                return createFrame(codec.getId(), encoded);
+        }
+
+        return createFrame(BleCompression.NO_CODEC, message);
+    }
+
+    private static byte[] createFrame(int codecId, byte[] bytes) {
+        byte[] frame = new byte[1 + bytes.length];
+        frame[0] = (byte) codecId;
+        System.arraycopy(bytes, 0, frame, 1, bytes.length);
+        return frame;
+    }
+
+    /**
+     * Message of the frame received
+     */
+    public byte[] decodeMessage(byte[] frame) throws IOException {
+        if (frame.length == 0)
+            return frame;
+
+        byte[] bytes = new byte[frame.length - 1];
+        System.arraycopy(frame, 1, bytes, 0, bytes.length);
+
+        int codecId = frame[0] & 0xFF;
+        if (codecId == BleCompression.NO_CODEC)
+            return bytes;
+
+        BleCompression compression = this.compression;
+        BleCodec codec = compression != null ? compression.getCodec(codecId) : null;
+        if (codec == null)
+            throw new IOException("Unknown codec " + codecId);
+
+        return codec.decode(bytes);
+    }
+
+    /**
+     * To be invoked from outside (single thread) when incoming packet arrives
+     * @param packet incoming packet (not copied for data packets)
+     */
+    public void dispatch(byte[] packet) {
+        if (!BlePacket.isValid(packet)) {
+            logger.warn("Corrupted packet is dropped"); // it's missing, so it's retransmitted
+            return;
+        }
+
+        if (BlePacket.getType(packet) == BlePacket.TYPE_ACK) {
+            if (packet.length >= BlePacket.ACK_PACKET_SIZE)
+                out.onAcknowledged(BlePacket.getSequence(packet), BlePacket.readAck(packet));
+            return;
+        }
+
+        int sequence = BlePacket.getSequence(packet);
+        int offset = (sequence - nextSequence + BlePacket.MAX_SEQUENCE) % BlePacket.MAX_SEQUENCE;
+        if (offset >= BleOutputStream.MAX_UNACKED) {
+            // duplicate (its ACK is lost)
+            sendAck();
+            return;
+        }
+
+        if (offset > 0) {
+            // packet before it is lost
+            outOfOrder[sequence % BleOutputStream.MAX_UNACKED] = packet;
+            sendAck();
+            return;
+        }
+
+        // deliver the packet and the packets received after it
+        boolean ackRequested = false;
+        while (packet != null) {
+            ackRequested |= BlePacket.isAckRequested(packet);
+            if (!deliver(packet)) {
+                fail();
+                return;
+            }
+            notAcknowledged++;
+
+            outOfOrder[nextSequence % BleOutputStream.MAX_UNACKED] = null;
+            nextSequence = (nextSequence + 1) % BlePacket.MAX_SEQUENCE;
+            packet = outOfOrder[nextSequence % BleOutputStream.MAX_UNACKED];
+        }
+
+        if (ackRequested || notAcknowledged >= ACK_INTERVAL)
+            sendAck();
+    }
+
+    // acknowledge the packets delivered and the packets received after a lost packet
+    private void sendAck() {
+        long received = 0;
+        for (int i = 0; i < BleOutputStream.MAX_UNACKED - 1; i++)
+            if (outOfOrder[(nextSequence + 1 + i) % BleOutputStream.MAX_UNACKED] != null)
+                received |= 1L << i;
+
+        notAcknowledged = 0;
+        out.sendAck(nextSequence, received);
+    }
+
+    // returns false if the other side violated the protocol
+    private boolean deliver(byte[] packet) {
+        int id = BlePacket.getChannel(packet);
+        BleChannel channel;
+        switch (BlePacket.getType(packet)) {
+            case BlePacket.TYPE_DATA:
+                boolean accepted = false;
+                synchronized (this) {
+                    channel = channels[id];
+                    if (channel == null && listener != null && !closed) {
+                        channel = createChannel(id);
+                        accepted = true;
+                    }
+                }
+
+                if (channel == null) {
+                    logger.warn("Packet for unknown channel " + id);
+                    return true;
+                }
+
+                if (accepted)
+                    listener.onChannelAccepted(channel);
+
+                // buffer holds all the bytes credit allows, so the dispatching thread is never blocked
+                if (!channel.getIn().doRead(packet, BlePacket.HEADER_SIZE)) {
+                    logger.error("Channel " + id + " credit is exceeded, BLE link is failed");
+                    return false;
+                }
+                channel.onReceived();
+                break;
+
+            case BlePacket.TYPE_CREDIT:
+                if (packet.length >= BlePacket.CREDIT_PACKET_SIZE)
+                    out.addCredit(id, BlePacket.readCredit(packet));
+                break;
+
+            case BlePacket.TYPE_CLOSE:
+                channel = getChannel(id);
+                if (channel != null)
+                    channel.onRemoteClosed();
+                break;
+
+            case BlePacket.TYPE_CANCEL:
+                channel = getChannel(id);
+                if (channel != null)
+                    channel.onCanceled();
+                else if (listener != null)
+                    out.sendClose(id); // nothing of the call is received: the client releases the channel
+                break;
+
+            case BlePacket.TYPE_CODECS:
+                onCodecsReceived(BlePacket.readCodecs(packet));
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Close all the channels (eg. when BLE link is lost)
+     */
+    public void close() throws IOException {
+        BleChannel[] openChannels;
+        synchronized (this) {
+            closed = true;
+            openChannels = channels.clone();
+            for (int i = 0; i < channels.length; i++)
+                channels[i] = null;
+            channelCount = 0;
+        }
+
+        for (BleChannel eachChannel : openChannels)
+            if (eachChannel != null)
+                eachChannel.onLinkClosed();
+    }
+}
@@ -5,121 +5,702 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayDeque;
 
 /**
  * Output stream for BLE
+ *
+ * Up to `window` packets are handed to BLE stack before {@link #notifyWritten()} confirms the first of them.
+ * Many channels can write concurrently (one write per channel at a time): their packets are interleaved
+ * round-robin, and data packets of a channel are sent only while the receiver has granted credit
+ * for the channel (see {@link BlePacket#TYPE_CREDIT}).
+ * Stream methods write to {@link #DEFAULT_CHANNEL}.
+ * Writes are either blocking or asynchronous (see {@link WriteCallback}).
+ *
+ * Packets are numbered and kept until the receiver acknowledges them (see {@link BlePacket#TYPE_ACK}),
+ * so a packet failed to be sent, missing in ACK or not acknowledged in time is retransmitted
+ * (up to {@link #MAX_ATTEMPTS} times) instead of failing the write.
+ * Packet arrays are reused once acknowledged and confirmed, so nothing is allocated per packet in steady state.
  */
 public abstract class BleOutputStream extends OutputStream {
 
     private Logger logger = LoggerFactory.getLogger(this.getClass().getSimpleName());
 
     public static final int OUTPUT_BUFFER_SIZE = 10 * 1024; // 10 Kb
-
-    private byte[] buffer;
-    private int length;
-    private AtomicInteger writtenLength = new AtomicInteger(0); // bytes written
+    public static final int DEFAULT_MTU = 23; // bytes
+    public static final int MAX_MTU = 517; // bytes
+    public static final int ATT_HEADER_SIZE = 3; // bytes (opcode + handle)
+    public static final int PACKET_SIZE = DEFAULT_MTU - ATT_HEADER_SIZE; // 20 bytes
+    public static final int MAX_PACKET_SIZE = MAX_MTU - ATT_HEADER_SIZE; // 514 bytes
+    public static final int DEFAULT_WINDOW = 1; // packets (stop-and-wait)
+    public static final int MAX_WINDOW = 16; // packets
+    public static final int DEFAULT_CHANNEL = 0;
+    public static final int MAX_UNACKED = 64; // packets sent and not acknowledged (sequence window)
+    public static final int ACK_TIMEOUT = 500; // ms (see checkAcknowledged())
+    public static final int MAX_ATTEMPTS = 8; // transmissions of a packet before BLE link is considered broken
+    public static final int MAX_POOLED_PACKETS = MAX_UNACKED + MAX_WINDOW; // packet arrays kept for reuse
+
+    private int bufferSize; // max bytes of one channel queued at once
 
     public int getBufferSize() {
-        return buffer.length;
+        return bufferSize;
+    }
+
+    /**
+     * Invoked when asynchronous write is finished (not holding the stream lock)
+     */
+    public interface WriteCallback {
+        void onWritten(boolean success);
+    }
+
+    /**
+     * Bytes of a channel being written (caller's array is not copied and should not be modified until they are sent)
+     */
+    private static class ChannelWrite {
+        final int channel;
+        final byte[] data;
+        final int offset;
+        final int length;
+        final WriteCallback callback; // null for blocking write
+        int sentLength;    // bytes handed to BLE stack
+        int writtenLength; // bytes confirmed by notifyWritten()
+        boolean failed;
+
+        ChannelWrite(int channel, byte[] data, int offset, int length, WriteCallback callback) {
+            this.channel = channel;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Packet sent and not acknowledged yet (kept to be retransmitted), one per sequence slot and reused
+     */
+    private static class SentPacket {
+        byte[] packet;        // null if the slot is free
+        int attempts;         // transmissions
+        long sendNumber;      // order of the last transmission
+        long sentTime;        // time (ms) of the last transmission
+        boolean inFlight;     // handed to BLE stack and not confirmed yet
+        boolean queued;       // to be retransmitted
+        boolean acknowledged; // released when confirmed (acknowledged while in flight)
     }
 
+    /**
+     * Listener for the packet not delivered after all the attempts (BLE link is broken)
+     */
+    public interface FailureListener {
+        void onDeliveryFailed();
+    }
+
+    private volatile FailureListener failureListener;
+
+    public void setFailureListener(FailureListener failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    private ChannelWrite[] writes = new ChannelWrite[BlePacket.MAX_CHANNELS]; // write in progress per channel
+    private ArrayDeque<ChannelWrite> pendingWrites = new ArrayDeque<ChannelWrite>(); // having bytes to send (round-robin)
+    private ArrayDeque<ChannelWrite> finishedWrites = new ArrayDeque<ChannelWrite>(); // asynchronous writes to invoke callbacks
+
     private BluetoothGattCharacteristic characteristic;
 
+    private volatile int packetSize = PACKET_SIZE;
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    /**
+     * To be invoked from outside when ATT MTU is negotiated for the connection
+     * @param mtu negotiated MTU (packets are MTU - 3 bytes)
+     */
+    public void setMtu(int mtu) {
+        packetSize = Math.max(PACKET_SIZE, Math.min(mtu, MAX_MTU) - ATT_HEADER_SIZE);
+        logger.debug("MTU=" + mtu + ", packet size=" + packetSize + " bytes");
+    }
+
+    // packets handed to BLE stack and not confirmed yet (ring): channel write (null for control packets), payload length,
+    // packet kept until acknowledged (null for ACK packets) and ACK packet (released when confirmed)
+    private ChannelWrite[] inFlightWrites = new ChannelWrite[MAX_WINDOW];
+    private int[] inFlightLengths = new int[MAX_WINDOW];
+    private SentPacket[] inFlightPackets = new SentPacket[MAX_WINDOW];
+    private byte[][] inFlightAcks = new byte[MAX_WINDOW][];
+    private int inFlightHead;
+    private int inFlightCount;
+    private int window = DEFAULT_WINDOW;
+
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    /**
+     * Max packets handed to BLE stack before the first of them is confirmed
+     */
+    public synchronized void setWindow(int window) {
+        this.window = Math.max(1, Math.min(window, MAX_WINDOW));
+    }
+
+    protected synchronized boolean hasPacketsInFlight() {
+        return inFlightCount > 0;
+    }
+
+    private int[] credits = new int[BlePacket.MAX_CHANNELS]; // payload bytes the receiver accepts per channel
+    private ArrayDeque<byte[]> controlPackets = new ArrayDeque<byte[]>();
+
+    private SentPacket[] unacked = new SentPacket[MAX_UNACKED]; // preallocated, index is sequence % MAX_UNACKED
+    private int firstUnacked; // sequence of the oldest packet not acknowledged
+    private int nextSequence; // sequence of the next new packet
+    private long sendCount; // transmissions
+    private long lastAckTime;
+    private ArrayDeque<SentPacket> retransmits = new ArrayDeque<SentPacket>(); // lost packets
+    private byte[] ackPacket; // ACK to send (the latest one only)
+    private int stalls; // checks BLE stack does not accept packets while nothing is in flight
+    private boolean deliveryFailed; // failure listener is to be invoked
+
+    // arrays of released packets (index is packet length)
+    private ArrayDeque<byte[]>[] freePackets = newPacketPool();
+    private int freePacketCount;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<byte[]>[] newPacketPool() {
+        return new ArrayDeque[MAX_PACKET_SIZE + 1];
+    }
+
+    // get packet array of the length (new one if no released array)
+    private byte[] obtainPacket(int packetLength) {
+        ArrayDeque<byte[]> free = freePackets[packetLength];
+        if (free == null || free.isEmpty())
+            return new byte[packetLength];
+
+        freePacketCount--;
+        return free.poll();
+    }
+
+    // packet array is not used by the stream and BLE stack anymore
+    private void releasePacket(byte[] packet) {
+        if (freePacketCount >= MAX_POOLED_PACKETS || packet.length >= freePackets.length)
+            return;
+
+        ArrayDeque<byte[]> free = freePackets[packet.length];
+        if (free == null) {
+            free = new ArrayDeque<byte[]>();
+            freePackets[packet.length] = free;
+        }
+        free.add(packet);
+        freePacketCount++;
+    }
+
+    // release the slot packet (acknowledged and not in flight)
+    private void releaseSent(SentPacket sent) {
+        releasePacket(sent.packet);
+        sent.packet = null;
+    }
+
+    private int getUnackedCount() {
+        return (nextSequence - firstUnacked + BlePacket.MAX_SEQUENCE) % BlePacket.MAX_SEQUENCE;
+    }
+
+    // new packet can be numbered: sequence window is not full and the slot packet is not in flight anymore
+    private boolean canSendNew() {
+        return getUnackedCount() < MAX_UNACKED && unacked[nextSequence % MAX_UNACKED].packet == null;
+    }
+
+    /**
+     * To be invoked from outside when the channel is opened (credit is restarted)
+     */
+    public synchronized void openChannel(int channel) {
+        credits[channel] = BlePacket.INITIAL_CREDIT;
+    }
+
+    /**
+     * To be invoked from outside when the receiver grants credit for the channel
+     */
+    public void addCredit(int channel, int credit) {
+        synchronized (this) {
+            credits[channel] += credit;
+            if (logger.isDebugEnabled())
+                logger.debug("channel " + channel + " credit granted: " + credit + " bytes, available: " + credits[channel] + " bytes");
+
+            pump();
+        }
+        invokeCallbacks();
+    }
+
+    /**
+     * Grant the sender on the other side `credit` more bytes for the channel (sent before pending data packets)
+     */
+    public void sendCredit(int channel, int credit) {
+        synchronized (this) {
+            byte[] packet = obtainPacket(BlePacket.CREDIT_PACKET_SIZE);
+            BlePacket.init(packet, BlePacket.TYPE_CREDIT, channel);
+            BlePacket.writeCredit(packet, credit);
+            _sendControlPacket(packet);
+        }
+        invokeCallbacks();
+    }
+
+    /**
+     * Notify the other side nothing is sent to the channel anymore (channel should have no write in progress)
+     */
+    public void sendClose(int channel) {
+        sendHeaderPacket(BlePacket.TYPE_CLOSE, channel);
+    }
+
+    /**
+     * Notify the other side the call of the channel is canceled (sent before the close packet)
+     */
+    public void sendCancel(int channel) {
+        sendHeaderPacket(BlePacket.TYPE_CANCEL, channel);
+    }
+
+    /**
+     * Drop the bytes of the channel not sent yet (its write in progress fails)
+     */
+    public void cancelWrite(int channel) {
+        synchronized (this) {
+            ChannelWrite write = writes[channel];
+            if (write != null) {
+                logger.debug("channel " + channel + " write canceled: " + (write.length - write.sentLength) + " bytes dropped");
+                failWrite(write);
+            }
+        }
+        invokeCallbacks();
+    }
+
+    /**
+     * Notify the other side of the codecs this side can decode
+     */
+    public void sendCodecs(int[] codecIds) {
+        synchronized (this) {
+            _sendControlPacket(BlePacket.createCodecsPacket(codecIds)); // once per link
+        }
+        invokeCallbacks();
+    }
+
+    /**
+     * Acknowledge the packets received from the other side (sent before pending packets, see {@link BlePacket#TYPE_ACK})
+     */
+    public void sendAck(int sequence, long received) {
+        synchronized (this) {
+            if (closed)
+                return;
+
+            // ACK not sent yet is updated
+            if (ackPacket == null)
+                ackPacket = obtainPacket(BlePacket.ACK_PACKET_SIZE);
+            BlePacket.writeAck(ackPacket, sequence, received);
+            pump();
+        }
+        invokeCallbacks();
+    }
+
+    /**
+     * To be invoked from outside when ACK is received: acknowledged packets are released,
+     * packets missing before a packet received are retransmitted
+     * @param sequence next sequence expected by the receiver
+     * @param received packets received after the next one expected (bit `i` is packet `sequence + 1 + i`)
+     */
+    public void onAcknowledged(int sequence, long received) {
+        synchronized (this) {
+            int unackedCount = getUnackedCount();
+            int acknowledged = (sequence - firstUnacked + BlePacket.MAX_SEQUENCE) % BlePacket.MAX_SEQUENCE;
+            if (acknowledged > unackedCount)
+                return; // outdated
+
+            for (int i = 0; i < acknowledged; i++) {
+                SentPacket sent = unacked[(firstUnacked + i) % MAX_UNACKED];
+                if (sent.queued) {
+                    sent.queued = false;
+                    retransmits.remove(sent);
+                }
+                if (sent.inFlight)
+                    sent.acknowledged = true; // BLE stack still uses the packet
+                else
+                    releaseSent(sent);
+            }
+            firstUnacked = sequence;
+            unackedCount -= acknowledged;
+            lastAckTime = System.currentTimeMillis();
+
+            // packets sent before the last packet received and missing are lost
+            if (received != 0) {
+                int lastReceived = 63 - Long.numberOfLeadingZeros(received);
+                if (lastReceived + 1 < unackedCount) {
+                    long lastSendNumber = unacked[(sequence + 1 + lastReceived) % MAX_UNACKED].sendNumber;
+                    for (int i = -1; i < lastReceived; i++) {
+                        if (i >= 0 && ((received >>> i) & 1) != 0)
+                            continue;
+
+                        SentPacket missing = unacked[(sequence + 1 + i) % MAX_UNACKED];
+                        if (missing.sendNumber < lastSendNumber)
+                            _retransmit(missing);
+                    }
+                }
+            }
+
+            pump();
+        }
+        invokeCallbacks();
+    }
+
+    /**
+     * To be invoked from outside periodically (every {@link #ACK_TIMEOUT} ms or so):
+     * the oldest packet not acknowledged in time is retransmitted (the packet or its ACK is lost)
+     * and the packets BLE stack did not accept are sent again
+     */
+    public void checkAcknowledged() {
+        synchronized (this) {
+            if (closed)
+                return;
+
+            if (getUnackedCount() > 0 && retransmits.isEmpty()) {
+                SentPacket oldest = unacked[firstUnacked % MAX_UNACKED];
+                if (!oldest.inFlight && System.currentTimeMillis() - Math.max(oldest.sentTime, lastAckTime) >= ACK_TIMEOUT)
+                    _retransmit(oldest);
+            }
+
+            if (!_writePackets() && ++stalls >= MAX_ATTEMPTS)
+                _fail("BLE stack does not accept packets");
+        }
+        invokeCallbacks();
+    }
+
+    // queue the packet to be sent again
+    private void _retransmit(SentPacket sent) {
+        if (sent.inFlight || sent.queued || closed)
+            return;
+
+        if (sent.attempts >= MAX_ATTEMPTS) {
+            _fail("Packet " + BlePacket.getSequence(sent.packet) + " is not delivered after " + sent.attempts + " attempts");
+            return;
+        }
+
+        logger.debug("retransmitting packet " + BlePacket.getSequence(sent.packet));
+        sent.queued = true;
+        retransmits.add(sent);
+    }
+
+    // BLE link is broken: all the writes fail
+    private void _fail(String reason) {
+        logger.error(reason);
+
+        closed = true;
+        deliveryFailed = true;
+        retransmits.clear();
+        controlPackets.clear();
+        ackPacket = null; // not in flight, so dropped
+        while (!pendingWrites.isEmpty())
+            failWrite(pendingWrites.peek());
+        for (ChannelWrite eachWrite : writes)
+            if (eachWrite != null)
+                failWrite(eachWrite);
+
+        notifyAll();
+    }
+
+    // send packet having no payload
+    private void sendHeaderPacket(byte type, int channel) {
+        synchronized (this) {
+            byte[] packet = obtainPacket(BlePacket.HEADER_SIZE);
+            BlePacket.init(packet, type, channel);
+            _sendControlPacket(packet);
+        }
+        invokeCallbacks();
+    }
+
+    private void _sendControlPacket(byte[] packet) {
+        if (closed)
+            return;
+
+        controlPackets.add(packet);
+        pump();
+    }
+
     public BluetoothGattCharacteristic getCharacteristic() {
         return characteristic;
     }
 
     public BleOutputStream(int bufferSize, BluetoothGattCharacteristic characteristic) {
-        buffer = new byte[bufferSize];
-        _reset(true);
-
+        this.bufferSize = bufferSize;
         this.characteristic = characteristic;
-    }
-
-    private void _reset(boolean fullReset) {
-        length = 0;
 
-        if (fullReset)
-            writtenLength.set(0);
-        lastPacket = null;
-        length = 0;
+        for (int i = 0; i < credits.length; i++)
+            credits[i] = BlePacket.INITIAL_CREDIT;
+        for (int i = 0; i < unacked.length; i++)
+            unacked[i] = new SentPacket();
     }
 
-    private AtomicBoolean writing = new AtomicBoolean(false);
+    // remove first packet in flight, returns its channel write (null for control packets)
+    private ChannelWrite pollInFlight() {
+        ChannelWrite write = inFlightWrites[inFlightHead];
+        SentPacket sent = inFlightPackets[inFlightHead];
+        byte[] ack = inFlightAcks[inFlightHead];
+        if (sent != null) {
+            sent.inFlight = false;
+            if (sent.acknowledged)
+                releaseSent(sent);
+        }
+        if (ack != null)
+            releasePacket(ack);
+
+        inFlightWrites[inFlightHead] = null;
+        inFlightPackets[inFlightHead] = null;
+        inFlightAcks[inFlightHead] = null;
+        inFlightHead = (inFlightHead + 1) % inFlightWrites.length;
+        inFlightCount--;
+        return write;
+    }
 
     /**
      * To be invoked from outside to notify new packet is sent over BLE
      */
     public void notifyWritten() {
-        if (!writing.get())
+        synchronized (this) {
+            if (inFlightCount == 0)
+                return;
+
+            // first packet in flight is confirmed
+            int payloadLength = inFlightLengths[inFlightHead];
+            confirmWrite(pollInFlight(), payloadLength);
+
+            pump();
+        }
+        invokeCallbacks();
+    }
+
+    /**
+     * To be invoked from outside to notify packet is not sent over BLE (it's retransmitted)
+     */
+    public void notifyFailed() {
+        synchronized (this) {
+            if (inFlightCount == 0)
+                return;
+
+            // first packet in flight is lost: the packet is kept, so the write goes on
+            int payloadLength = inFlightLengths[inFlightHead];
+            SentPacket sent = inFlightPackets[inFlightHead];
+            confirmWrite(pollInFlight(), payloadLength);
+            if (sent != null && sent.packet != null && !sent.acknowledged)
+                _retransmit(sent);
+
+            pump();
+        }
+        invokeCallbacks();
+    }
+
+    private void confirmWrite(ChannelWrite write, int payloadLength) {
+        if (write == null || write.failed)
+            return;
+
+        write.writtenLength += payloadLength;
+        if (write.writtenLength == write.length)
+            finishWrite(write);
+    }
+
+    private void failWrite(ChannelWrite write) {
+        if (write.failed)
             return;
 
-        if (length == writtenLength.addAndGet(lastPacket.length)) {
-            finishWriting();
+        write.failed = true;
+        pendingWrites.remove(write);
+        finishWrite(write);
+    }
+
+    private void finishWrite(ChannelWrite write) {
+        if (write.callback != null) {
+            // asynchronous write: callback is invoked when the lock is released
+            if (writes[write.channel] == write)
+                writes[write.channel] = null;
+            finishedWrites.add(write);
         } else {
-            _writePacket();
+            notifyAll(); // blocking write is waiting
         }
     }
 
-    private void finishWriting() {
-        _reset(false);
-        writing.set(false);
+    // invoke callbacks of finished asynchronous writes and failure listener (not holding the lock)
+    private void invokeCallbacks() {
+        while (true) {
+            ChannelWrite write;
+            boolean failed = false;
+            synchronized (this) {
+                write = finishedWrites.poll();
+                if (write == null) {
+                    failed = deliveryFailed;
+                    deliveryFailed = false;
+                }
+            }
+
+            if (write == null) {
+                FailureListener listener = failureListener;
+                if (failed && listener != null)
+                    listener.onDeliveryFailed();
+                return;
+            }
+
+            write.callback.onWritten(!write.failed);
+        }
+    }
+
+    // send pending packets if possible (if BLE stack does not accept them, they are sent on the next check)
+    private void pump() {
+        _writePackets();
     }
 
-    private byte[] lastPacket;
+    // hand packet to BLE stack, returns false if not accepted
+    private boolean sendPacket(byte[] packet, ChannelWrite write, int payloadLength, SentPacket sent) {
+        if (!writeCharacteristic(characteristic, packet))
+            return false;
+
+        int index = (inFlightHead + inFlightCount) % inFlightWrites.length;
+        inFlightWrites[index] = write;
+        inFlightLengths[index] = payloadLength;
+        inFlightPackets[index] = sent;
+        inFlightAcks[index] = sent == null ? packet : null;
+        inFlightCount++;
+        stalls = 0;
+
+        if (sent != null) {
+            sent.attempts++;
+            sent.sendNumber = ++sendCount;
+            sent.sentTime = System.currentTimeMillis();
+            sent.inFlight = true;
+        }
+        return true;
+    }
 
-    // send new packet
-    private boolean _writePacket() {
-        int remainingLength = length - writtenLength.get();
-        if (remainingLength == 0) {
-            finishWriting();
+    // number and send new packet (kept in the sequence slot), returns false if not accepted
+    private boolean sendNewPacket(byte[] packet, ChannelWrite write, int payloadLength, boolean ackRequest) {
+        BlePacket.seal(packet, nextSequence, ackRequest);
+        SentPacket sent = unacked[nextSequence % MAX_UNACKED];
+        sent.attempts = 0;
+        sent.queued = false;
+        sent.acknowledged = false;
+        if (!sendPacket(packet, write, payloadLength, sent))
+            return false;
+
+        sent.packet = packet;
+        nextSequence = (nextSequence + 1) % BlePacket.MAX_SEQUENCE;
+        return true;
+    }
+
+    // returns true if the receiver is to be asked for ACK right away (nothing can be sent after the packet)
+    private boolean isAckRequired(boolean moreToSend) {
+        if (getUnackedCount() + 1 >= MAX_UNACKED)
             return true;
+
+        if (moreToSend || !controlPackets.isEmpty())
+            return false;
+
+        for (ChannelWrite eachWrite : pendingWrites)
+            if (credits[eachWrite.channel] > 0)
+                return false;
+        return true;
+    }
+
+    // send packets while window, credit and sequence window allow, returns false if failed to send
+    private boolean _writePackets() {
+        if (closed)
+            return true;
+
+        // ACK first (not numbered)
+        if (ackPacket != null && inFlightCount < window) {
+            if (!sendPacket(ackPacket, null, 0, null))
+                return inFlightCount > 0; // BLE stack is busy: retry when next packet is confirmed
+
+            ackPacket = null;
+        }
+
+        // lost packets (the receiver is waiting for them)
+        while (inFlightCount < window && !retransmits.isEmpty()) {
+            SentPacket sent = retransmits.peek();
+            BlePacket.seal(sent.packet, BlePacket.getSequence(sent.packet), true);
+            if (!sendPacket(sent.packet, null, 0, sent))
+                return inFlightCount > 0;
+
+            retransmits.poll();
+            sent.queued = false;
         }
 
-        // having bytes to send
+        // control packets
+        while (inFlightCount < window && canSendNew() && !controlPackets.isEmpty()) {
+            byte[] packet = controlPackets.poll();
+            if (!sendNewPacket(packet, null, 0, isAckRequired(false))) {
+                controlPackets.addFirst(packet);
+                return inFlightCount > 0;
+            }
+        }
+
+        // one packet per channel in turn (channels without credit are skipped)
+        int skipped = 0;
+        while (inFlightCount < window && canSendNew() && skipped < pendingWrites.size()) {
+            ChannelWrite write = pendingWrites.poll();
+            int credit = credits[write.channel];
+            if (credit <= 0) {
+                pendingWrites.add(write);
+                skipped++;
+                continue;
+            }
 
-        // prepare packet
-        int packetLength = Math.min(20, remainingLength);
-        logger.debug("sending packet: " + packetLength + " bytes");
-        lastPacket = new byte[packetLength];
-        System.arraycopy(buffer, writtenLength.get(), lastPacket, 0, packetLength);
+            // prepare packet (kept until acknowledged)
+            int payloadLength = Math.min(Math.min(packetSize - BlePacket.HEADER_SIZE, write.length - write.sentLength), credit);
+            if (logger.isDebugEnabled())
+                logger.debug("sending packet: channel " + write.channel + ", " + payloadLength + " bytes");
+            byte[] packet = obtainPacket(BlePacket.HEADER_SIZE + payloadLength);
+            BlePacket.init(packet, BlePacket.TYPE_DATA, write.channel);
+            System.arraycopy(write.data, write.offset + write.sentLength, packet, BlePacket.HEADER_SIZE, payloadLength);
+            boolean moreToSend = write.sentLength + payloadLength < write.length && credit > payloadLength;
+
+            // send packet
+            if (!sendNewPacket(packet, write, payloadLength, isAckRequired(moreToSend))) {
+                releasePacket(packet);
+                pendingWrites.addFirst(write);
+                return inFlightCount > 0; // BLE stack is busy: retry when next packet is confirmed
+            }
+
+            write.sentLength += payloadLength;
+            credits[write.channel] -= payloadLength;
+            if (write.sentLength < write.length)
+                pendingWrites.add(write);
+            skipped = 0;
+        }
 
-        // send packet
-        characteristic.setValue(lastPacket);
-        return writeCharacteristic(characteristic);
+        return true;
     }
 
-    protected abstract boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+    /**
+     * Hand packet to BLE stack
+     * @param value packet (array can be sent again by the stream after the method returns,
+     *              it's reused for other packets only after {@link #notifyWritten()} or {@link #notifyFailed()})
+     * @return false if not accepted
+     */
+    protected abstract boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value);
 
-    private void waitWritten(int length) {
+    private void waitWritten(ChannelWrite write) throws IOException {
         // notifyWritten() should be invoked from outside to check everything is sent
-        while (writtenLength.get() < length) {
+        while (write.writtenLength < write.length && !write.failed && !closed) {
             try {
-                Thread.sleep(10);
+                wait();
             } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while writing BLE characteristic");
             }
         }
     }
 
+    private final byte[] singleByte = new byte[1];
+
     @Override
     public void write(int i) throws IOException {
         logger.debug("write(i)");
 
-        if (closed)
-            return;
-
-        if (writing.get())
-            throw new IllegalStateException("Already writing");
-
-        // prepare buffer for writing
-        writing.set(true);
-        buffer[length++] = (byte)i;
-
-        _writePacket();
-        waitWritten(1);  // blocks until actually written
+        synchronized (this) {
+            singleByte[0] = (byte) i;
+            write(singleByte, 0, 1);
+        }
 
         logger.debug("write(i) finished");
     }
@@ -131,35 +712,96 @@ public abstract class BleOutputStream extends OutputStream {
 
     @Override
     public void write(byte[] output, int offset, int outputLength) throws IOException {
+        write(DEFAULT_CHANNEL, output, offset, outputLength);
+    }
+
+    /**
+     * Write bytes to the channel, blocks until they are sent
+     */
+    public void write(int channel, byte[] output, int offset, int outputLength) throws IOException {
+        try {
+            _write(channel, output, offset, outputLength);
+        } finally {
+            invokeCallbacks();
+        }
+    }
+
+    /**
+     * Write bytes to the channel without blocking
+     * @param output bytes to write (not copied, so should not be modified until the callback is invoked)
+     * @param callback invoked when written or failed
+     */
+    public void write(int channel, byte[] output, int offset, int outputLength, WriteCallback callback) {
+        synchronized (this) {
+            if (writes[channel] != null)
+                throw new IllegalStateException("Already writing");
+
+            ChannelWrite write = new ChannelWrite(channel, output, offset, outputLength, callback);
+            if (closed) {
+                write.failed = true;
+                finishedWrites.add(write);
+            } else if (outputLength == 0) {
+                finishedWrites.add(write);
+            } else {
+                writes[channel] = write;
+                pendingWrites.add(write);
+                pump();
+            }
+        }
+        invokeCallbacks();
+    }
+
+    private synchronized void _write(int channel, byte[] output, int offset, int outputLength) throws IOException {
         if (closed)
-            return;
+            throw new IOException("Stream is closed");
 
-        if (writing.get())
+        if (writes[channel] != null)
             throw new IllegalStateException("Already writing");
 
-        logger.debug("write() " + outputLength + " bytes");
+        if (logger.isDebugEnabled())
+            logger.debug("write() channel " + channel + ": " + outputLength + " bytes");
+
+        // send buffer by buffer
+        int bufferOffset = 0;
+        while (bufferOffset < outputLength) {
+            ChannelWrite write = new ChannelWrite(channel, output, offset + bufferOffset, Math.min(bufferSize, outputLength - bufferOffset), null);
+            writes[channel] = write;
+            pendingWrites.add(write);
+            try {
+                pump();
+                waitWritten(write); // blocks until actually written (and credit is granted if needed)
+            } finally {
+                writes[channel] = null;
+                pendingWrites.remove(write);
+            }
+
+            if (write.failed)
+                throw new IOException("Failed to write BLE characteristic");
 
-        // prepare buffer for writing
-        writing.set(true);
-        System.arraycopy(output, offset, buffer, writtenLength.get(), outputLength);
-        length += outputLength;
+            if (write.writtenLength < write.length)
+                throw new IOException("Stream is closed"); // while writing
 
-        if (!_writePacket())
-            throw new IOException("Failed to write BLE characteristic");
-        waitWritten(outputLength); // blocks until actually written
-        _reset(true);
+            bufferOffset += write.length;
+        }
 
         logger.debug("write() finished");
     }
 
-    private boolean closed = false;
+    private volatile boolean closed = false;
 
     @Override
     public void close() throws IOException {
-        logger.debug("read()");
+        logger.debug("close()");
 
         closed = true;
-        _reset(true);
-        buffer = null;
+        synchronized (this) {
+            // asynchronous writes fail
+            for (ChannelWrite eachWrite : writes)
+                if (eachWrite != null && eachWrite.callback != null)
+                    failWrite(eachWrite);
+
+            notifyAll();
+        }
+        invokeCallbacks();
     }
 }
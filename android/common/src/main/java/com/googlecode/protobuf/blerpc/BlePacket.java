@@ -0,0 +1,184 @@
+package com.googlecode.protobuf.blerpc;
+
+/**
+ * BLE packet format (characteristic value written or notified)
+ *
+ * Every packet: [type] [channel] [sequence] [checksum] [payload ...]
+ * DATA:   payload bytes
+ * CREDIT: [credit (2 bytes, big-endian)] - receiver allows sender to send `credit` more payload bytes
+ * CLOSE:  - sender does not send to the channel anymore
+ * CODECS: [codec id ...], channel 0 - codecs the sender can decode (see {@link BleCompression})
+ * ACK:    [received (8 bytes, big-endian)], channel 0 - sequence is the next sequence expected (all the packets before it
+ *         are received), bit `i` of received is set if packet `sequence + 1 + i` is received (not sequenced itself)
+ * CANCEL: - client canceled the call of the channel, server drops the bytes not sent yet and closes the channel
+ *
+ * Packets except ACK are numbered (sequence, 1 byte) by the sender and delivered in order by the receiver,
+ * lost packets are retransmitted (see {@link BleOutputStream#onAcknowledged(int, long)}).
+ * Checksum is CRC-8 of the packet (checksum byte is 0 while computed), corrupted packets are dropped.
+ * Type has {@link #FLAG_ACK_REQUEST} set if the sender asks for ACK right away.
+ *
+ * Every RPC call has its own channel, so many calls share one BLE link (see {@link BleLink}).
+ */
+public class BlePacket {
+
+    public static final byte TYPE_DATA = 0;
+    public static final byte TYPE_CREDIT = 1;
+    public static final byte TYPE_CLOSE = 2;
+    public static final byte TYPE_CODECS = 3;
+    public static final byte TYPE_ACK = 4;
+    public static final byte TYPE_CANCEL = 5;
+
+    public static final int TYPE_MASK = 0x7F;
+    public static final int FLAG_ACK_REQUEST = 0x80;
+
+    public static final int HEADER_SIZE = 4; // bytes
+    public static final int CREDIT_PACKET_SIZE = HEADER_SIZE + 2; // bytes
+    public static final int ACK_PACKET_SIZE = HEADER_SIZE + 8; // bytes
+    public static final int MAX_CREDIT = 0xFFFF; // bytes per credit packet
+    public static final int MAX_CHANNELS = 256; // channel id is 1 byte
+    public static final int MAX_SEQUENCE = 256; // sequence is 1 byte
+
+    /**
+     * Payload bytes sender can send to a channel before the first credit packet is received
+     * (receivers should have input buffer at least of this size)
+     */
+    public static final int INITIAL_CREDIT = 4 * 1024; // 4 Kb
+
+    private static final int CRC_POLYNOMIAL = 0x07; // CRC-8 (x^8 + x^2 + x + 1)
+    private static final byte[] CRC_TABLE = new byte[256];
+
+    static {
+        for (int i = 0; i < CRC_TABLE.length; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ CRC_POLYNOMIAL : crc << 1;
+            CRC_TABLE[i] = (byte) crc;
+        }
+    }
+
+    public static int getType(byte[] packet) {
+        return packet[0] & TYPE_MASK;
+    }
+
+    public static boolean isAckRequested(byte[] packet) {
+        return (packet[0] & FLAG_ACK_REQUEST) != 0;
+    }
+
+    public static int getChannel(byte[] packet) {
+        return packet[1] & 0xFF;
+    }
+
+    public static int getSequence(byte[] packet) {
+        return packet[2] & 0xFF;
+    }
+
+    private static int checksum(byte[] packet) {
+        int crc = 0;
+        for (int i = 0; i < packet.length; i++)
+            crc = CRC_TABLE[(crc ^ (i == 3 ? 0 : packet[i])) & 0xFF];
+        return crc & 0xFF;
+    }
+
+    /**
+     * Set sequence, ACK request and checksum of the packet (right before it's sent)
+     */
+    public static void seal(byte[] packet, int sequence, boolean ackRequest) {
+        packet[0] = (byte) (ackRequest ? packet[0] | FLAG_ACK_REQUEST : packet[0] & TYPE_MASK);
+        packet[2] = (byte) sequence;
+        packet[3] = (byte) checksum(packet);
+    }
+
+    public static boolean isValid(byte[] packet) {
+        return packet.length >= HEADER_SIZE && (packet[3] & 0xFF) == checksum(packet);
+    }
+
+    /**
+     * Set type and channel of the packet (array can be reused, sequence and checksum are set by {@link #seal})
+     */
+    public static void init(byte[] packet, byte type, int channel) {
+        packet[0] = type;
+        packet[1] = (byte) channel;
+    }
+
+    public static byte[] createDataPacket(int channel, int payloadLength) {
+        byte[] packet = new byte[HEADER_SIZE + payloadLength];
+        init(packet, TYPE_DATA, channel);
+        return packet;
+    }
+
+    public static byte[] createCreditPacket(int channel, int credit) {
+        byte[] packet = new byte[CREDIT_PACKET_SIZE];
+        init(packet, TYPE_CREDIT, channel);
+        writeCredit(packet, credit);
+        return packet;
+    }
+
+    public static void writeCredit(byte[] packet, int credit) {
+        packet[HEADER_SIZE] = (byte) (credit >> 8);
+        packet[HEADER_SIZE + 1] = (byte) credit;
+    }
+
+    public static int readCredit(byte[] packet) {
+        return ((packet[HEADER_SIZE] & 0xFF) << 8) | (packet[HEADER_SIZE + 1] & 0xFF);
+    }
+
+    public static byte[] createClosePacket(int channel) {
+        return new byte[] {
+            TYPE_CLOSE,
+            (byte) channel,
+            0,
+            0
+        };
+    }
+
+    public static byte[] createCancelPacket(int channel) {
+        return new byte[] {
+            TYPE_CANCEL,
+            (byte) channel,
+            0,
+            0
+        };
+    }
+
+    public static byte[] createCodecsPacket(int[] codecIds) {
+        byte[] packet = new byte[HEADER_SIZE + codecIds.length];
+        packet[0] = TYPE_CODECS;
+        for (int i = 0; i < codecIds.length; i++)
+            packet[HEADER_SIZE + i] = (byte) codecIds[i];
+        return packet;
+    }
+
+    public static int[] readCodecs(byte[] packet) {
+        int[] codecIds = new int[packet.length - HEADER_SIZE];
+        for (int i = 0; i < codecIds.length; i++)
+            codecIds[i] = packet[HEADER_SIZE + i] & 0xFF;
+        return codecIds;
+    }
+
+    /**
+     * @param sequence next sequence expected
+     * @param received packets received after the next one expected (bit `i` is packet `sequence + 1 + i`)
+     */
+    public static byte[] createAckPacket(int sequence, long received) {
+        byte[] packet = new byte[ACK_PACKET_SIZE];
+        writeAck(packet, sequence, received);
+        return packet;
+    }
+
+    /**
+     * Write (sealed) ACK to the array of {@link #ACK_PACKET_SIZE} bytes
+     */
+    public static void writeAck(byte[] packet, int sequence, long received) {
+        init(packet, TYPE_ACK, 0);
+        for (int i = 0; i < 8; i++)
+            packet[HEADER_SIZE + i] = (byte) (received >>> (56 - 8 * i));
+        seal(packet, sequence, false);
+    }
+
+    public static long readAck(byte[] packet) {
+        long received = 0;
+        for (int i = 0; i < 8; i++)
+            received = (received << 8) | (packet[HEADER_SIZE + i] & 0xFF);
+        return received;
+    }
+}
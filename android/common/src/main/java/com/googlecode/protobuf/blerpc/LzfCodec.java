@@ -0,0 +1,140 @@
+package com.googlecode.protobuf.blerpc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZF codec (pure Java, fast, good for repeated strings)
+ *
+ * Format: [uncompressed length (4 bytes, big-endian)] [chunks ...]
+ * literal chunk:   [000LLLLL] [L + 1 bytes]
+ * reference chunk: [LLLOOOOO] ([L - 7] if L == 7) [OOOOOOOO] - copy L + 2 bytes from offset O + 1 bytes back
+ */
+public class LzfCodec implements BleCodec {
+
+    public static final int ID = 2;
+
+    private static final int HEADER_SIZE = 4; // bytes
+    private static final int MAX_LITERAL = 32; // bytes
+    private static final int MAX_OFFSET = 8192; // bytes
+    private static final int MAX_REFERENCE = 264; // bytes
+    private static final int HASH_BITS = 12;
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    private static int hash(byte[] data, int i) {
+        int value = ((data[i] & 0xFF) << 16) | ((data[i + 1] & 0xFF) << 8) | (data[i + 2] & 0xFF);
+        return (value * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    @Override
+    public byte[] encode(byte[] data) throws IOException {
+        int length = data.length;
+        byte[] output = new byte[HEADER_SIZE + length + length / MAX_LITERAL + 1];
+        output[0] = (byte) (length >> 24);
+        output[1] = (byte) (length >> 16);
+        output[2] = (byte) (length >> 8);
+        output[3] = (byte) length;
+
+        int[] positions = new int[1 << HASH_BITS]; // last position + 1 per hash (0 if none)
+        int outputOffset = HEADER_SIZE;
+        int literalOffset = 0;
+        int i = 0;
+        while (i + 2 < length) {
+            int hash = hash(data, i);
+            int reference = positions[hash] - 1;
+            positions[hash] = i + 1;
+
+            if (reference < 0 || i - reference > MAX_OFFSET
+                    || data[reference] != data[i]
+                    || data[reference + 1] != data[i + 1]
+                    || data[reference + 2] != data[i + 2]) {
+                i++;
+                continue;
+            }
+
+            // matched at least 3 bytes
+            int maxLength = Math.min(MAX_REFERENCE, length - i);
+            int matchLength = 3;
+            while (matchLength < maxLength && data[reference + matchLength] == data[i + matchLength])
+                matchLength++;
+
+            outputOffset = writeLiterals(data, literalOffset, i, output, outputOffset);
+
+            int chunkLength = matchLength - 2;
+            int offset = i - reference - 1;
+            if (chunkLength < 7) {
+                output[outputOffset++] = (byte) ((chunkLength << 5) | (offset >> 8));
+            } else {
+                output[outputOffset++] = (byte) ((7 << 5) | (offset >> 8));
+                output[outputOffset++] = (byte) (chunkLength - 7);
+            }
+            output[outputOffset++] = (byte) offset;
+
+            i += matchLength;
+            literalOffset = i;
+        }
+        outputOffset = writeLiterals(data, literalOffset, length, output, outputOffset);
+
+        return Arrays.copyOf(output, outputOffset);
+    }
+
+    private static int writeLiterals(byte[] data, int from, int to, byte[] output, int outputOffset) {
+        while (from < to) {
+            int literalLength = Math.min(MAX_LITERAL, to - from);
+            output[outputOffset++] = (byte) (literalLength - 1);
+            System.arraycopy(data, from, output, outputOffset, literalLength);
+            outputOffset += literalLength;
+            from += literalLength;
+        }
+        return outputOffset;
+    }
+
+    @Override
+    public byte[] decode(byte[] data) throws IOException {
+        if (data.length < HEADER_SIZE)
+            throw new IOException("Corrupted LZF data");
+
+        int length = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+        if (length < 0)
+            throw new IOException("Corrupted LZF data");
+        if (length > MAX_MESSAGE_SIZE)
+            throw new IOException("LZF data is too large: " + length + " bytes");
+
+        byte[] output = new byte[length];
+        int outputOffset = 0;
+        int i = HEADER_SIZE;
+        try {
+            while (i < data.length) {
+                int control = data[i++] & 0xFF;
+                if (control < MAX_LITERAL) {
+                    int literalLength = control + 1;
+                    System.arraycopy(data, i, output, outputOffset, literalLength);
+                    i += literalLength;
+                    outputOffset += literalLength;
+                } else {
+                    int chunkLength = control >> 5;
+                    if (chunkLength == 7)
+                        chunkLength += data[i++] & 0xFF;
+                    int reference = outputOffset - (((control & 0x1F) << 8) | (data[i++] & 0xFF)) - 1;
+                    if (reference < 0)
+                        throw new IOException("Corrupted LZF data");
+
+                    // byte by byte as the bytes copied can overlap
+                    for (int j = 0; j < chunkLength + 2; j++)
+                        output[outputOffset++] = output[reference++];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted LZF data");
+        }
+
+        if (outputOffset != length)
+            throw new IOException("Corrupted LZF data");
+
+        return output;
+    }
+}
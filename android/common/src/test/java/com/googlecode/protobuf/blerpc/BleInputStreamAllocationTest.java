@@ -0,0 +1,65 @@
+package com.googlecode.protobuf.blerpc;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Allocation benchmark: heap bytes allocated per packet received and read in steady state
+ * (queue nodes are reused once the queue has grown to the most fragments buffered)
+ */
+public class BleInputStreamAllocationTest {
+
+    private static Logger logger = LoggerFactory.getLogger(BleInputStreamAllocationTest.class.getSimpleName());
+
+    private static final int PAYLOAD_SIZE = BleOutputStream.PACKET_SIZE - BlePacket.HEADER_SIZE; // bytes
+    private static final int BUFFERED_PACKETS = 32; // received before they are read
+    private static final int WARMUP_ROUNDS = 10000;
+    private static final int ROUNDS = 2000;
+
+    // receive the packets, then read them all
+    private static void receiveAndRead(BleInputStream in, byte[][] packets, byte[] buffer, int rounds) throws Exception {
+        for (int i = 0; i < rounds; i++) {
+            for (byte[] eachPacket : packets)
+                assertTrue(in.doRead(eachPacket, BlePacket.HEADER_SIZE));
+
+            int remaining = packets.length * PAYLOAD_SIZE;
+            while (remaining > 0)
+                remaining -= in.read(buffer, 0, Math.min(buffer.length, remaining));
+        }
+    }
+
+    // bytes allocated by the rounds
+    private static long measure(BleInputStream in, byte[][] packets, byte[] buffer, int rounds) throws Exception {
+        long allocated = getAllocatedBytes();
+        receiveAndRead(in, packets, buffer, rounds);
+        return getAllocatedBytes() - allocated;
+    }
+
+    private static long getAllocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void testAllocationPerPacket() throws Exception {
+        BleInputStream in = new BleInputStream(BleInputStream.INPUT_BUFFER_SIZE, BleInputStream.READ_TIMEOUT);
+        byte[][] packets = new byte[BUFFERED_PACKETS][];
+        for (int i = 0; i < packets.length; i++)
+            packets[i] = BlePacket.createDataPacket(1, PAYLOAD_SIZE);
+        byte[] buffer = new byte[100]; // reads cross packet boundaries
+
+        receiveAndRead(in, packets, buffer, WARMUP_ROUNDS); // queue is grown, code is compiled
+
+        long overhead = measure(in, packets, buffer, 0); // measurement itself (allocated by the management bean)
+        long allocated = measure(in, packets, buffer, ROUNDS) - overhead;
+
+        String result = (ROUNDS * BUFFERED_PACKETS) + " packets received and read: " + allocated + " bytes allocated";
+        logger.info(result);
+        assertEquals(result, 0, allocated);
+    }
+}
@@ -0,0 +1,148 @@
+package com.googlecode.protobuf.blerpc;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Latency benchmark: time from a packet received (see {@link BleInputStream#doRead(byte[], int)})
+ * to the waiting reader returning its bytes
+ *
+ * Fake characteristic feeder thread sends packets of {@link BleOutputStream#PACKET_SIZE} bytes in lockstep with the reader
+ * (next packet is sent when the previous one is read), so every packet wakes up the parked reader.
+ *
+ * Hand-off cost (see {@link #testHandOff()}) is measured by ping-pong of packets between two threads,
+ * compared to a new thread started per event (callbacks were dispatched this way before the single callback thread).
+ */
+public class BleInputStreamLatencyTest {
+
+    private static Logger logger = LoggerFactory.getLogger(BleInputStreamLatencyTest.class.getSimpleName());
+
+    private static final int WARMUP_PACKETS = 2000;
+    private static final int PACKETS = 2000;
+    private static final int PAYLOAD_SIZE = BleOutputStream.PACKET_SIZE - BlePacket.HEADER_SIZE; // bytes
+    private static final long MAX_MEDIAN_LATENCY = TimeUnit.MILLISECONDS.toNanos(1); // sleep-polling took 10 ms
+    private static final int WARMUP_HAND_OFFS = 5000;
+    private static final int HAND_OFFS = 5000;
+
+    // latency of every packet (ns)
+    private static long[] measure(final BleInputStream in, int packets) throws Exception {
+        final long[] sentTimes = new long[packets];
+        final Semaphore read = new Semaphore(0);
+        Thread feeder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < sentTimes.length; i++) {
+                    byte[] packet = BlePacket.createDataPacket(0, PAYLOAD_SIZE);
+                    sentTimes[i] = System.nanoTime();
+                    in.doRead(packet, BlePacket.HEADER_SIZE);
+                    read.acquireUninterruptibly();
+                }
+            }
+        });
+        feeder.start();
+
+        long[] latencies = new long[packets];
+        byte[] buffer = new byte[1024];
+        for (int i = 0; i < packets; i++) {
+            // partial read: returns the bytes of one packet without waiting for the whole buffer
+            assertEquals(PAYLOAD_SIZE, in.read(buffer));
+            latencies[i] = System.nanoTime() - sentTimes[i];
+            read.release();
+        }
+        feeder.join();
+        return latencies;
+    }
+
+    private static long percentile(long[] sortedValues, int percent) {
+        return sortedValues[(sortedValues.length - 1) * percent / 100];
+    }
+
+    @Test
+    public void testReadLatency() throws Exception {
+        BleInputStream in = new BleInputStream(BleInputStream.INPUT_BUFFER_SIZE, BleInputStream.READ_TIMEOUT);
+        measure(in, WARMUP_PACKETS);
+
+        long[] latencies = measure(in, PACKETS);
+        Arrays.sort(latencies);
+        long median = percentile(latencies, 50);
+        String result = PACKETS + " packets: p50=" + TimeUnit.NANOSECONDS.toMicros(median) + " us"
+                + ", p99=" + TimeUnit.NANOSECONDS.toMicros(percentile(latencies, 99)) + " us"
+                + ", max=" + TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length - 1]) + " us";
+        logger.info(result);
+        assertTrue(result, median < MAX_MEDIAN_LATENCY);
+    }
+
+    // ping-pong: every packet is handed to the other thread, returns time (ns) per hand-off
+    private static long measureHandOffs(final BleInputStream ping, final BleInputStream pong, final int handOffs) throws Exception {
+        Thread ponger = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] buffer = new byte[PAYLOAD_SIZE];
+                    for (int i = 0; i < handOffs / 2; i++) {
+                        pong.read(buffer);
+                        ping.doRead(BlePacket.createDataPacket(0, PAYLOAD_SIZE), BlePacket.HEADER_SIZE);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        ponger.start();
+
+        byte[] buffer = new byte[PAYLOAD_SIZE];
+        long started = System.nanoTime();
+        for (int i = 0; i < handOffs / 2; i++) {
+            pong.doRead(BlePacket.createDataPacket(0, PAYLOAD_SIZE), BlePacket.HEADER_SIZE);
+            assertEquals(PAYLOAD_SIZE, ping.read(buffer));
+        }
+        long elapsed = System.nanoTime() - started;
+        ponger.join();
+        return elapsed / handOffs;
+    }
+
+    // new thread per event, returns time (ns) per event handled
+    private static long measureThreadPerEvent(int events) throws Exception {
+        final AtomicInteger handled = new AtomicInteger();
+        Runnable event = new Runnable() {
+            @Override
+            public void run() {
+                handled.incrementAndGet();
+            }
+        };
+
+        long started = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            Thread thread = new Thread(event);
+            thread.start();
+            thread.join(); // events are handled in order
+        }
+        long elapsed = System.nanoTime() - started;
+        assertEquals(events, handled.get());
+        return elapsed / events;
+    }
+
+    @Test
+    public void testHandOff() throws Exception {
+        BleInputStream ping = new BleInputStream(BleInputStream.INPUT_BUFFER_SIZE, BleInputStream.READ_TIMEOUT);
+        BleInputStream pong = new BleInputStream(BleInputStream.INPUT_BUFFER_SIZE, BleInputStream.READ_TIMEOUT);
+        measureHandOffs(ping, pong, WARMUP_HAND_OFFS);
+        measureThreadPerEvent(WARMUP_HAND_OFFS);
+
+        long handOff = measureHandOffs(ping, pong, HAND_OFFS);
+        long threadPerEvent = measureThreadPerEvent(HAND_OFFS);
+        String result = "hand-off: " + TimeUnit.NANOSECONDS.toMicros(handOff) + " us"
+                + ", new thread per event: " + TimeUnit.NANOSECONDS.toMicros(threadPerEvent) + " us";
+        logger.info(result);
+        assertTrue(result, handOff < threadPerEvent);
+    }
+}
@@ -0,0 +1,221 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Calls over two links connected back to back by lossy output streams (see {@link Loopback})
+ */
+public class BleLinkTest {
+
+    private static final int CALLS = 100;
+    private static final int THREADS = 4;
+
+    private Loopback loopback;
+    private BleLink client;
+    private BlockingQueue<BleChannel> accepted = new LinkedBlockingQueue<BleChannel>();
+    private ExecutorService serverExecutor = Executors.newFixedThreadPool(THREADS);
+    private ExecutorService clientExecutor = Executors.newFixedThreadPool(THREADS);
+
+    @After
+    public void tearDown() {
+        serverExecutor.shutdownNow();
+        clientExecutor.shutdownNow();
+        loopback.close();
+    }
+
+    private void connect(double loss, double impairment) {
+        loopback = new Loopback(loss, impairment, new BleLink.Listener() {
+            @Override
+            public void onChannelAccepted(BleChannel channel) {
+                accepted.add(channel);
+            }
+        });
+        client = loopback.client;
+
+        // echo server
+        for (int i = 0; i < THREADS; i++)
+            serverExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            BleChannel channel = accepted.take();
+                            FileDescriptorProto.Builder request = FileDescriptorProto.newBuilder();
+                            channel.receiveProtoMessage(request);
+                            channel.sendProtoMessage(request.build());
+                            channel.close();
+                        }
+                    } catch (InterruptedException e) {
+                        // finished
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+    }
+
+    // message of few packets up to few hundred packets
+    private static FileDescriptorProto createMessage(int n) {
+        FileDescriptorProto.Builder message = FileDescriptorProto.newBuilder().setName("message " + n);
+        for (int i = 0; i < n % 40; i++)
+            message.addDependency("dependency " + i + " of message " + n);
+        return message.build();
+    }
+
+    private void assertCalls() throws Exception {
+        List<Future<FileDescriptorProto>> responses = new ArrayList<Future<FileDescriptorProto>>();
+        for (int i = 0; i < CALLS; i++) {
+            final int n = i;
+            responses.add(clientExecutor.submit(new Callable<FileDescriptorProto>() {
+                @Override
+                public FileDescriptorProto call() throws Exception {
+                    BleChannel channel = client.openChannel();
+                    channel.sendProtoMessage(createMessage(n));
+                    FileDescriptorProto.Builder response = FileDescriptorProto.newBuilder();
+                    channel.receiveProtoMessage(response);
+                    channel.close();
+                    return response.build();
+                }
+            }));
+        }
+
+        for (int i = 0; i < CALLS; i++)
+            assertEquals(createMessage(i), responses.get(i).get(60, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCalls() throws Exception {
+        connect(0, 0);
+        assertCalls();
+    }
+
+    @Test
+    public void testCallsLosingFewPackets() throws Exception {
+        connect(0.02, 0);
+        assertCalls();
+        assertTrue(loopback.clientOut.lost.get() > 0);
+    }
+
+    @Test
+    public void testCallsLosingManyPackets() throws Exception {
+        connect(0.1, 0);
+        assertCalls();
+    }
+
+    @Test
+    public void testCallsFailingCorruptingAndReordering() throws Exception {
+        connect(0.01, 0.01);
+        assertCalls();
+    }
+
+    @Test
+    public void testDeliveryFailure() throws Exception {
+        connect(1, 0); // nothing is delivered
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        client.setFailureListener(new BleLink.FailureListener() {
+            @Override
+            public void onLinkFailed(BleLink link) {
+                failed.countDown();
+            }
+        });
+
+        BleChannel channel = client.openChannel();
+        channel.sendProtoMessage(createMessage(1)); // handed to BLE stack, but not acknowledged
+        assertTrue(failed.await(BleOutputStream.ACK_TIMEOUT * (BleOutputStream.MAX_ATTEMPTS + 2), TimeUnit.MILLISECONDS));
+        assertTrue(channel.isRemoteClosed()); // call fails
+
+        try {
+            client.openChannel();
+            fail("Link is closed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 10 * 1000)
+    public void testCreditExceeded() throws Exception {
+        final List<BleChannel> notRead = new ArrayList<BleChannel>();
+        loopback = new Loopback(0, 0, new BleLink.Listener() {
+            @Override
+            public void onChannelAccepted(BleChannel channel) {
+                notRead.add(channel); // nothing is read, so no credit is granted
+            }
+        });
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        loopback.server.setFailureListener(new BleLink.FailureListener() {
+            @Override
+            public void onLinkFailed(BleLink link) {
+                failed.countDown();
+            }
+        });
+
+        // the other side ignores its credit: dispatching thread is not blocked, the link fails
+        int payloadLength = BleOutputStream.MAX_PACKET_SIZE - BlePacket.HEADER_SIZE;
+        for (int i = 0; i <= BleInputStream.INPUT_BUFFER_SIZE / payloadLength; i++) {
+            byte[] packet = BlePacket.createDataPacket(1, payloadLength);
+            BlePacket.seal(packet, i, false);
+            loopback.server.dispatch(packet);
+        }
+
+        assertTrue(failed.await(0, TimeUnit.MILLISECONDS));
+        assertEquals(1, notRead.size());
+        assertTrue(notRead.get(0).isRemoteClosed());
+    }
+
+    @Test(timeout = 10 * 1000)
+    public void testWriteClosed() throws Exception {
+        loopback = new Loopback(0, 0, new BleLink.Listener() {
+            @Override
+            public void onChannelAccepted(BleChannel channel) {
+                accepted.add(channel); // nothing is read, so no credit is granted
+            }
+        });
+
+        final BleChannel channel = loopback.client.openChannel();
+        Future<?> writing = clientExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                channel.getOut().write(new byte[BlePacket.INITIAL_CREDIT * 2]);
+                return null;
+            }
+        });
+
+        // blocked writer fails when the stream is closed
+        Thread.sleep(BleOutputStream.ACK_TIMEOUT);
+        assertFalse(writing.isDone());
+        loopback.clientOut.close();
+        try {
+            writing.get();
+            fail("Stream is closed while writing");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        // the next write fails too
+        try {
+            channel.getOut().write(new byte[1]);
+            fail("Stream is closed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.googlecode.protobuf.blerpc;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.*;
+
+/**
+ * Allocation benchmark: heap bytes allocated per packet sent in steady state
+ * (packets are confirmed and acknowledged right away on the writing thread)
+ *
+ * Asynchronous write allocates its descriptor, so it's measured with single packet writes
+ * and subtracted from the allocation of large writes: nothing is to be left per packet.
+ */
+public class BleOutputStreamAllocationTest {
+
+    private static Logger logger = LoggerFactory.getLogger(BleOutputStreamAllocationTest.class.getSimpleName());
+
+    private static final int CHANNEL = 1;
+    private static final int SINGLE_PACKET_WRITE_SIZE = BleOutputStream.PACKET_SIZE - BlePacket.HEADER_SIZE; // bytes
+    private static final int WRITE_SIZE = 5000; // bytes (last packet of a write is shorter)
+    private static final int WARMUP_WRITES = 2000;
+    private static final int WRITES = 2000;
+
+    /**
+     * Output stream handing packets to the test (packets are checked and confirmed by {@link #drain()})
+     */
+    private static class RecordingOutputStream extends BleOutputStream {
+
+        private final ArrayDeque<byte[]> written = new ArrayDeque<byte[]>(MAX_WINDOW * 2);
+        long packets;
+
+        RecordingOutputStream() {
+            super(OUTPUT_BUFFER_SIZE, null);
+            setWindow(MAX_WINDOW);
+        }
+
+        @Override
+        protected boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value) {
+            written.add(value);
+            return true;
+        }
+
+        // confirm the packets written (the next ones are written meanwhile), data packets are acknowledged
+        void drain() {
+            byte[] packet;
+            while ((packet = written.poll()) != null) {
+                packets++;
+                int sequence = BlePacket.getSequence(packet);
+                int payloadLength = packet.length - BlePacket.HEADER_SIZE;
+                boolean data = BlePacket.getType(packet) == BlePacket.TYPE_DATA;
+                notifyWritten();
+                if (data) {
+                    onAcknowledged((sequence + 1) % BlePacket.MAX_SEQUENCE, 0);
+                    addCredit(CHANNEL, payloadLength);
+                }
+            }
+        }
+    }
+
+    private static final BleOutputStream.WriteCallback callback = new BleOutputStream.WriteCallback() {
+        @Override
+        public void onWritten(boolean success) {
+            assertTrue(success);
+        }
+    };
+
+    private static void write(RecordingOutputStream out, byte[] data, int writes) {
+        for (int i = 0; i < writes; i++) {
+            out.write(CHANNEL, data, 0, data.length, callback);
+            out.drain();
+        }
+    }
+
+    // bytes allocated by the writes
+    private static long measure(RecordingOutputStream out, byte[] data, int writes) {
+        long allocated = getAllocatedBytes();
+        write(out, data, writes);
+        return getAllocatedBytes() - allocated;
+    }
+
+    private static long getAllocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void testAllocationPerPacket() {
+        RecordingOutputStream out = new RecordingOutputStream();
+        out.openChannel(CHANNEL);
+        byte[] singlePacketData = new byte[SINGLE_PACKET_WRITE_SIZE];
+        byte[] data = new byte[WRITE_SIZE];
+
+        // packet pool is filled, code is compiled
+        write(out, singlePacketData, WARMUP_WRITES);
+        write(out, data, WARMUP_WRITES);
+
+        // measurement itself (allocated by the management bean)
+        long overhead = measure(out, data, 0);
+
+        // write descriptor
+        long packets = out.packets;
+        long allocatedPerWrite = (measure(out, singlePacketData, WRITES) - overhead) / WRITES;
+        assertEquals(WRITES, out.packets - packets);
+
+        // packets
+        packets = out.packets;
+        long allocated = measure(out, data, WRITES) - overhead;
+        packets = out.packets - packets;
+        long allocatedForPackets = allocated - allocatedPerWrite * WRITES;
+
+        String result = packets + " packets sent in " + WRITES + " writes: " + allocated + " bytes allocated, "
+                + allocatedPerWrite + " bytes per write, " + allocatedForPackets + " bytes for the packets";
+        logger.info(result);
+        assertEquals(result, 0, allocatedForPackets);
+    }
+}
@@ -0,0 +1,157 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput benchmark: request upload over simulated BLE link (see {@link Loopback}) for MTU sizes
+ * and windows (packets handed to BLE stack before the first of them is confirmed)
+ *
+ * Every packet takes {@link #BYTE_TIME} us per byte of airtime and is confirmed {@link #CONFIRM_DELAY} us after it's sent,
+ * so small packets are dominated by the confirmation delay.
+ * Lossy link is measured too (lost packets are retransmitted by the links).
+ */
+public class BleThroughputTest {
+
+    private static Logger logger = LoggerFactory.getLogger(BleThroughputTest.class.getSimpleName());
+
+    private static final long CONFIRM_DELAY = 1000; // us
+    private static final long BYTE_TIME = 8; // us
+    private static final int MTU_UPLOAD_SIZE = 20 * 1024; // bytes
+    private static final int WINDOW_UPLOAD_SIZE = 8 * 1024; // bytes
+    private static final double LOSS = 0.01;
+    private static final int RUNS = 3; // best run is compared (scheduling noise)
+
+    private Loopback loopback;
+    private BlockingQueue<BleChannel> accepted = new LinkedBlockingQueue<BleChannel>();
+    private ExecutorService serverExecutor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        serverExecutor.shutdownNow();
+        if (loopback != null)
+            loopback.close();
+    }
+
+    private void connect(double loss, int mtu, int window) {
+        if (loopback != null)
+            loopback.close();
+
+        loopback = new Loopback(loss, 0, new BleLink.Listener() {
+            @Override
+            public void onChannelAccepted(BleChannel channel) {
+                accepted.add(channel);
+            }
+        });
+        loopback.setLink(mtu, window, CONFIRM_DELAY, BYTE_TIME);
+    }
+
+    // server receives the request and sends empty response
+    private void startServer() {
+        serverExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        BleChannel channel = accepted.take();
+                        FileDescriptorProto.Builder request = FileDescriptorProto.newBuilder();
+                        channel.receiveProtoMessage(request);
+                        channel.sendProtoMessage(FileDescriptorProto.newBuilder().setName(request.getPackage()).build());
+                        channel.close();
+                    }
+                } catch (InterruptedException e) {
+                    // finished
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private static FileDescriptorProto createRequest(int size) {
+        Random random = new Random(size);
+        StringBuilder name = new StringBuilder(size);
+        for (int i = 0; i < size; i++)
+            name.append((char) ('a' + random.nextInt(26)));
+        return FileDescriptorProto.newBuilder().setName(name.toString()).setPackage("uploaded").build();
+    }
+
+    /**
+     * @return upload throughput (bytes/s) of the call
+     */
+    private double measureUpload(double loss, int mtu, int window, int size) throws IOException {
+        connect(loss, mtu, window);
+        FileDescriptorProto request = createRequest(size);
+
+        long started = System.nanoTime();
+        BleChannel channel = loopback.client.openChannel();
+        channel.sendProtoMessage(request);
+        FileDescriptorProto.Builder response = FileDescriptorProto.newBuilder();
+        channel.receiveProtoMessage(response);
+        channel.close();
+        long elapsed = System.nanoTime() - started;
+
+        assertEquals(request.getPackage(), response.getName()); // request is received in full
+        double throughput = request.getSerializedSize() * 1e9 / elapsed;
+        logger.info(String.format("loss %.0f%%, MTU %d, window %d, %d bytes: %.1f Kb/s",
+                loss * 100, mtu, window, request.getSerializedSize(), throughput / 1024));
+        return throughput;
+    }
+
+    // best throughput of the runs
+    private double measureBestUpload(int mtu, int window, int size) throws IOException {
+        double best = 0;
+        for (int i = 0; i < RUNS; i++)
+            best = Math.max(best, measureUpload(0, mtu, window, size));
+        return best;
+    }
+
+    @Test
+    public void testMtu() throws Exception {
+        startServer();
+        measureUpload(0, 185, BleOutputStream.DEFAULT_WINDOW, MTU_UPLOAD_SIZE / 4); // warm up
+
+        double[] throughputs = new double[3];
+        int[] mtus = { BleOutputStream.DEFAULT_MTU, 185, BleOutputStream.MAX_MTU };
+        for (int i = 0; i < mtus.length; i++)
+            throughputs[i] = measureBestUpload(mtus[i], BleOutputStream.DEFAULT_WINDOW, MTU_UPLOAD_SIZE);
+        for (int eachMtu : mtus)
+            measureUpload(LOSS, eachMtu, BleOutputStream.DEFAULT_WINDOW, MTU_UPLOAD_SIZE);
+
+        String result = String.format("MTU %d/%d/%d: %.1f/%.1f/%.1f Kb/s", mtus[0], mtus[1], mtus[2],
+                throughputs[0] / 1024, throughputs[1] / 1024, throughputs[2] / 1024);
+        logger.info(result);
+        assertTrue(result, throughputs[1] > 3 * throughputs[0]);
+        assertTrue(result, throughputs[2] > throughputs[1]);
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        startServer();
+        measureUpload(0, BleOutputStream.DEFAULT_MTU, 4, WINDOW_UPLOAD_SIZE / 4); // warm up
+
+        int[] windows = { 1, 2, 4, 8 };
+        double[] throughputs = new double[windows.length];
+        for (int i = 0; i < windows.length; i++)
+            throughputs[i] = measureBestUpload(BleOutputStream.DEFAULT_MTU, windows[i], WINDOW_UPLOAD_SIZE);
+        for (int eachWindow : windows)
+            measureUpload(LOSS, BleOutputStream.DEFAULT_MTU, eachWindow, WINDOW_UPLOAD_SIZE);
+
+        String result = String.format("window 1/2/4/8: %.1f/%.1f/%.1f/%.1f Kb/s",
+                throughputs[0] / 1024, throughputs[1] / 1024, throughputs[2] / 1024, throughputs[3] / 1024);
+        logger.info(result);
+        assertTrue(result, throughputs[2] > 3 * throughputs[0]); // 3-5x is expected
+    }
+}
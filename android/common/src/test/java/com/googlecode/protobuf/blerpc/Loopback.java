@@ -0,0 +1,169 @@
+package com.googlecode.protobuf.blerpc;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two links connected back to back by lossy output streams (simulated BLE connection of the tests)
+ *
+ * Link failure closes the other link too, as it drops BLE connection.
+ */
+class Loopback {
+
+    /**
+     * Output stream delivering packets to the other link on its own thread,
+     * packets can be lost, fail to be sent, be corrupted or be delivered after the next packet.
+     * Radio is simulated if link timing is set: packets are sent one by one (airtime is proportional to packet length)
+     * and every packet is delivered and confirmed some time after it's sent.
+     */
+    static class LossyOutputStream extends BleOutputStream {
+
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        private final Random random = new Random(1);
+        private final double loss;
+        private final double impairment; // probability of every other impairment
+        private BleLink peer;
+        private byte[] held; // packet delivered after the next one
+
+        private long confirmDelay; // us
+        private long byteTime; // us
+        private long radioFreeTime; // us (nanoTime) radio finishes sending the packets handed to it
+
+        final AtomicInteger lost = new AtomicInteger();
+
+        LossyOutputStream(double loss, double impairment) {
+            super(OUTPUT_BUFFER_SIZE, null);
+            this.loss = loss;
+            this.impairment = impairment;
+            setWindow(4);
+        }
+
+        /**
+         * @param confirmDelay time (us) the packet is delivered and confirmed after it's sent
+         * @param byteTime airtime (us) per packet byte
+         */
+        void setLinkTiming(long confirmDelay, long byteTime) {
+            this.confirmDelay = confirmDelay;
+            this.byteTime = byteTime;
+        }
+
+        @Override
+        protected boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value) {
+            if (executor.isShutdown())
+                return false;
+
+            // packets are sent in order, so they are delivered and confirmed in order too
+            long now = TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+            radioFreeTime = Math.max(radioFreeTime, now) + value.length * byteTime;
+            long delay = radioFreeTime + confirmDelay - now;
+
+            final byte[] packet = value.clone(); // corrupted or held packet is changed or used later
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(packet);
+                }
+            }, delay, TimeUnit.MICROSECONDS);
+            return true;
+        }
+
+        private void deliver(byte[] packet) {
+            double r = random.nextDouble();
+            if (r < loss) {
+                lost.incrementAndGet();
+                notifyWritten(); // silently dropped
+                return;
+            }
+
+            r -= loss;
+            if (r < impairment) {
+                notifyFailed();
+                return;
+            }
+            if (r < 2 * impairment) {
+                packet[packet.length - 1] ^= 0x10;
+                peer.dispatch(packet);
+                notifyWritten();
+                return;
+            }
+            if (r < 3 * impairment && held == null) {
+                held = packet;
+                notifyWritten();
+                return;
+            }
+
+            peer.dispatch(packet);
+            if (held != null) {
+                byte[] heldPacket = held;
+                held = null;
+                peer.dispatch(heldPacket);
+            }
+            notifyWritten();
+        }
+    }
+
+    final LossyOutputStream clientOut;
+    final LossyOutputStream serverOut;
+    final BleLink client;
+    final BleLink server;
+    private final ScheduledExecutorService ackExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * @param serverListener listener of the channels opened by the client
+     */
+    Loopback(double loss, double impairment, BleLink.Listener serverListener) {
+        clientOut = new LossyOutputStream(loss, impairment);
+        serverOut = new LossyOutputStream(loss, impairment);
+        client = new BleLink(clientOut, BleInputStream.INPUT_BUFFER_SIZE, false, null);
+        server = new BleLink(serverOut, BleInputStream.INPUT_BUFFER_SIZE, false, serverListener);
+        clientOut.peer = server;
+        serverOut.peer = client;
+
+        client.setFailureListener(createDisconnectingListener(server));
+        server.setFailureListener(createDisconnectingListener(client));
+
+        ackExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                clientOut.checkAcknowledged();
+                serverOut.checkAcknowledged();
+            }
+        }, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    private static BleLink.FailureListener createDisconnectingListener(final BleLink peer) {
+        return new BleLink.FailureListener() {
+            @Override
+            public void onLinkFailed(BleLink link) {
+                try {
+                    peer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+    }
+
+    /**
+     * Set MTU, window and link timing of both directions
+     */
+    void setLink(int mtu, int window, long confirmDelay, long byteTime) {
+        for (LossyOutputStream eachOut : new LossyOutputStream[] { clientOut, serverOut }) {
+            eachOut.setMtu(mtu);
+            eachOut.setWindow(window);
+            eachOut.setLinkTiming(confirmDelay, byteTime);
+        }
+    }
+
+    void close() {
+        ackExecutor.shutdownNow();
+        clientOut.executor.shutdownNow();
+        serverOut.executor.shutdownNow();
+    }
+}
@@ -0,0 +1,163 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Service caching responses of idempotent methods (decorator for the service registered in RpcServer)
+ *
+ * Responses are cached per method and request bytes for the method TTL (see {@link #setTtl(String, long)}),
+ * least recently used responses are evicted when cache size exceeds max size.
+ * Cache hit does not invoke the service.
+ */
+public class CachingService implements Service {
+
+    private Logger logger = LoggerFactory.getLogger(CachingService.class.getSimpleName());
+
+    public static final int DEFAULT_MAX_SIZE = 256 * 1024; // 256 Kb of serialized responses
+
+    /**
+     * Cached response (immutable, so it's shared by all the calls)
+     */
+    private static class Entry {
+        final Message response;
+        final int size;
+        final long expires;
+
+        Entry(Message response, long expires) {
+            this.response = response;
+            this.size = response.getSerializedSize();
+            this.expires = expires;
+        }
+    }
+
+    private Service service;
+    private int maxSize;
+    private int size;
+    private Map<String, Long> ttls = new HashMap<String, Long>(); // methods cached
+    private LinkedHashMap<RequestKey, Entry> entries = new LinkedHashMap<RequestKey, Entry>(16, 0.75f, true); // access order
+
+    public CachingService(Service service) {
+        this(service, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize max bytes of serialized responses cached
+     */
+    public CachingService(Service service, int maxSize) {
+        this.service = service;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Cache responses of the method (method should return the same response for the same request)
+     * @param methodName method name
+     * @param ttl time (ms) the response is returned from the cache
+     */
+    public synchronized void setTtl(String methodName, long ttl) {
+        if (service.getDescriptorForType().findMethodByName(methodName) == null)
+            throw new IllegalArgumentException("Method " + methodName + " not found");
+
+        ttls.put(methodName, ttl);
+    }
+
+    /**
+     * Remove all the responses cached
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    @Override
+    public Descriptors.ServiceDescriptor getDescriptorForType() {
+        return service.getDescriptorForType();
+    }
+
+    @Override
+    public Message getRequestPrototype(Descriptors.MethodDescriptor method) {
+        return service.getRequestPrototype(method);
+    }
+
+    @Override
+    public Message getResponsePrototype(Descriptors.MethodDescriptor method) {
+        return service.getResponsePrototype(method);
+    }
+
+    private synchronized Long getTtl(Descriptors.MethodDescriptor method) {
+        return ttls.get(method.getName());
+    }
+
+    private synchronized Message get(RequestKey key) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+
+        if (entry.expires <= System.currentTimeMillis()) {
+            entries.remove(key);
+            size -= entry.size;
+            return null;
+        }
+
+        return entry.response;
+    }
+
+    private synchronized void put(RequestKey key, Message response, long ttl) {
+        Entry entry = new Entry(response, System.currentTimeMillis() + ttl);
+        if (entry.size > maxSize)
+            return;
+
+        Entry oldEntry = entries.put(key, entry);
+        if (oldEntry != null)
+            size -= oldEntry.size;
+        size += entry.size;
+
+        // evict least recently used
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Entry eachEntry = it.next();
+            it.remove();
+            size -= eachEntry.size;
+        }
+    }
+
+    @Override
+    public void callMethod(Descriptors.MethodDescriptor method,
+                           final RpcController controller,
+                           Message request,
+                           final RpcCallback<Message> done) {
+        final Long ttl = getTtl(method);
+        if (ttl == null) {
+            service.callMethod(method, controller, request, done);
+            return;
+        }
+
+        final RequestKey key = new RequestKey(method, request);
+        Message response = get(key);
+        if (response != null) {
+            logger.debug("Cache hit: " + method.getName());
+            done.run(response);
+            return;
+        }
+
+        service.callMethod(method, controller, request, new RpcCallback<Message>() {
+            @Override
+            public void run(Message response) {
+                if (response != null && !controller.failed())
+                    put(key, response, ttl);
+
+                done.run(response);
+            }
+        });
+    }
+}
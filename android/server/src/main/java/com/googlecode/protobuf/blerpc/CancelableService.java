@@ -0,0 +1,100 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Service;
+
+/**
+ * Service notified when the client cancels the call (decorator for the service registered in RpcServer)
+ *
+ * The service gets the controller of the call: `isCanceled()` returns true and `notifyOnCancel()` callbacks
+ * are invoked when the client cancels the call, so the service can stop early.
+ * Response of the call canceled is not sent anyway.
+ */
+public class CancelableService implements Service {
+
+    /**
+     * Controller of the call (RpcServer controller for everything except cancellation)
+     */
+    private static class CallController implements RpcController {
+        private final RpcController controller;
+        private final BleChannel channel;
+
+        CallController(RpcController controller, BleChannel channel) {
+            this.controller = controller;
+            this.channel = channel;
+        }
+
+        @Override
+        public void reset() {
+            controller.reset();
+        }
+
+        @Override
+        public boolean failed() {
+            return controller.failed();
+        }
+
+        @Override
+        public String errorText() {
+            return controller.errorText();
+        }
+
+        @Override
+        public void startCancel() {
+            controller.startCancel();
+        }
+
+        @Override
+        public void setFailed(String reason) {
+            controller.setFailed(reason);
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return channel.isCanceled();
+        }
+
+        @Override
+        public void notifyOnCancel(final RpcCallback<Object> callback) {
+            channel.addCancelListener(new BleChannel.CancelListener() {
+                @Override
+                public void onCanceled(BleChannel channel) {
+                    callback.run(null);
+                }
+            });
+        }
+    }
+
+    private Service service;
+
+    public CancelableService(Service service) {
+        this.service = service;
+    }
+
+    @Override
+    public Descriptors.ServiceDescriptor getDescriptorForType() {
+        return service.getDescriptorForType();
+    }
+
+    @Override
+    public Message getRequestPrototype(Descriptors.MethodDescriptor method) {
+        return service.getRequestPrototype(method);
+    }
+
+    @Override
+    public Message getResponsePrototype(Descriptors.MethodDescriptor method) {
+        return service.getResponsePrototype(method);
+    }
+
+    @Override
+    public void callMethod(Descriptors.MethodDescriptor method,
+                           RpcController controller,
+                           Message request,
+                           RpcCallback<Message> done) {
+        BleChannel channel = ServerBleCall.getCurrentChannel();
+        service.callMethod(method, channel != null ? new CallController(controller, channel) : controller, request, done);
+    }
+}
@@ -0,0 +1,168 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service coalescing identical concurrent calls of idempotent methods (decorator for the service registered in RpcServer)
+ *
+ * While the service is invoked for a request, calls of the same method with equal request
+ * (from any client) do not invoke the service: they wait for the call in progress and get its response
+ * (the call fails if the response is not received in {@link #getWaitTimeout()} ms).
+ */
+public class CoalescingService implements Service {
+
+    private Logger logger = LoggerFactory.getLogger(CoalescingService.class.getSimpleName());
+
+    public static final int WAIT_TIMEOUT = 60 * 1000; // 1 minute
+
+    /**
+     * Call in progress
+     */
+    private static class Call {
+        final CountDownLatch finished = new CountDownLatch(1);
+        Message response;
+        String error; // null if not failed
+
+        void finish(Message response, String error) {
+            this.response = response;
+            this.error = error;
+            finished.countDown();
+        }
+    }
+
+    private Service service;
+    private Set<String> methods = new HashSet<String>(); // methods coalesced
+    private Map<RequestKey, Call> calls = new HashMap<RequestKey, Call>();
+
+    public CoalescingService(Service service) {
+        this.service = service;
+    }
+
+    private volatile long waitTimeout = WAIT_TIMEOUT;
+
+    public long getWaitTimeout() {
+        return waitTimeout;
+    }
+
+    /**
+     * Max time (ms) to wait for the call in progress (eg. the service does not invoke its callback)
+     */
+    public void setWaitTimeout(long waitTimeout) {
+        this.waitTimeout = waitTimeout;
+    }
+
+    /**
+     * Coalesce calls of the method (method should return the same response for the same request)
+     * @param methodName method name
+     */
+    public synchronized void coalesce(String methodName) {
+        if (service.getDescriptorForType().findMethodByName(methodName) == null)
+            throw new IllegalArgumentException("Method " + methodName + " not found");
+
+        methods.add(methodName);
+    }
+
+    private synchronized boolean isCoalesced(Descriptors.MethodDescriptor method) {
+        return methods.contains(method.getName());
+    }
+
+    @Override
+    public Descriptors.ServiceDescriptor getDescriptorForType() {
+        return service.getDescriptorForType();
+    }
+
+    @Override
+    public Message getRequestPrototype(Descriptors.MethodDescriptor method) {
+        return service.getRequestPrototype(method);
+    }
+
+    @Override
+    public Message getResponsePrototype(Descriptors.MethodDescriptor method) {
+        return service.getResponsePrototype(method);
+    }
+
+    @Override
+    public void callMethod(Descriptors.MethodDescriptor method,
+                           final RpcController controller,
+                           Message request,
+                           final RpcCallback<Message> done) {
+        if (!isCoalesced(method)) {
+            service.callMethod(method, controller, request, done);
+            return;
+        }
+
+        final RequestKey key = new RequestKey(method, request);
+        final Call call;
+        boolean inProgress;
+        synchronized (this) {
+            Call progressCall = calls.get(key);
+            inProgress = (progressCall != null);
+            call = inProgress ? progressCall : new Call();
+            if (!inProgress)
+                calls.put(key, call);
+        }
+
+        // wait for the call in progress (blocks like the service itself)
+        if (inProgress) {
+            logger.debug("Waiting for the same call in progress: " + method.getName());
+            try {
+                if (!call.finished.await(waitTimeout, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Timeout while waiting for the same call in progress: " + method.getName());
+                    controller.setFailed("Timeout while waiting for the same call in progress");
+                    done.run(null);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                controller.setFailed("Interrupted while waiting for the same call in progress");
+                done.run(null);
+                return;
+            }
+
+            if (call.error != null)
+                controller.setFailed(call.error);
+            done.run(call.response);
+            return;
+        }
+
+        try {
+            service.callMethod(method, controller, request, new RpcCallback<Message>() {
+                @Override
+                public void run(Message response) {
+                    finish(key, call, response, controller.failed() ? controller.errorText() : null);
+                    done.run(response);
+                }
+            });
+        } catch (RuntimeException e) {
+            finish(key, call, null, "Service failed: " + e.getMessage()); // calls waiting are not blocked forever
+            throw e;
+        }
+
+        // service returned without the response (eg. lost its callback): next calls invoke the service again,
+        // calls waiting get the response if it's received later or fail on timeout
+        if (call.finished.getCount() > 0)
+            remove(key, call);
+    }
+
+    private synchronized void remove(RequestKey key, Call call) {
+        if (calls.get(key) == call)
+            calls.remove(key);
+    }
+
+    private void finish(RequestKey key, Call call, Message response, String error) {
+        remove(key, call);
+        call.finish(response, error);
+    }
+}
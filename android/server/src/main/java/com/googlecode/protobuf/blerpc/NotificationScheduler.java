@@ -0,0 +1,252 @@
+package com.googlecode.protobuf.blerpc;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notification scheduler for all the connected devices (peripheral role)
+ *
+ * BLE stack notifies one packet at a time, so packets are queued per device and notified
+ * round-robin (one packet per device in turn) as soon as the previous notification is sent
+ * (see {@link #onNotificationSent(BluetoothDevice, int)}).
+ * Large response to one device does not delay small responses to the other devices.
+ * Notification not sent in {@link #NOTIFY_TIMEOUT} ms is considered failed, so other devices are notified.
+ */
+public class NotificationScheduler {
+
+    private Logger logger = LoggerFactory.getLogger(NotificationScheduler.class.getSimpleName());
+
+    public static final int MAX_QUEUED_PACKETS = ServerBleOutputStream.NOTIFY_WINDOW; // per device
+    public static final int RETRY_DELAY = 50; // ms (BLE stack is busy)
+    public static final int NOTIFY_TIMEOUT = 1000; // 1 second (onNotificationSent() did not arrive)
+    public static final int TIMEOUT_CHECK_PERIOD = NOTIFY_TIMEOUT / 4; // ms
+
+    /**
+     * Packets of one device
+     */
+    private static class DeviceQueue {
+        final ServerBleOutputStream out;
+        final ArrayDeque<byte[]> packets = new ArrayDeque<byte[]>(); // first one is notified or to be notified next
+        int attempts; // failed attempts to notify first packet
+
+        DeviceQueue(ServerBleOutputStream out) {
+            this.out = out;
+        }
+    }
+
+    private ServerBleRpcConnectionFactory factory;
+
+    private Map<BluetoothDevice, DeviceQueue> queues = new HashMap<BluetoothDevice, DeviceQueue>();
+    private ArrayDeque<DeviceQueue> turns = new ArrayDeque<DeviceQueue>(); // devices having packets to notify (round-robin)
+    private DeviceQueue notifying; // device waiting for onNotificationSent() (null if none)
+    private long notifyingSince; // time (ms) notification of `notifying` started
+    private ArrayDeque<ServerBleOutputStream> failedPackets = new ArrayDeque<ServerBleOutputStream>(); // to confirm failed packets
+    private boolean retryScheduled;
+    private boolean closed;
+
+    private ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private Runnable retryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (NotificationScheduler.this) {
+                retryScheduled = false;
+                _notifyNext();
+            }
+            confirmFailed();
+        }
+    };
+
+    private Runnable confirmRunnable = new Runnable() {
+        @Override
+        public void run() {
+            confirmFailed();
+        }
+    };
+
+    // notification timeout is checked periodically (nothing is scheduled per notification)
+    private Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkTimeout();
+        }
+    };
+
+    public NotificationScheduler(ServerBleRpcConnectionFactory factory) {
+        this.factory = factory;
+        retryExecutor.scheduleWithFixedDelay(timeoutRunnable, TIMEOUT_CHECK_PERIOD, TIMEOUT_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue packet to notify the device of the stream
+     * @param packet packet (not copied)
+     * @return false if the device queue is full
+     */
+    public boolean enqueue(ServerBleOutputStream out, byte[] packet) {
+        synchronized (this) {
+            if (closed)
+                return false;
+
+            DeviceQueue queue = queues.get(out.getDevice());
+            if (queue == null || queue.out != out) {
+                if (queue != null)
+                    _remove(queue); // device is reconnected
+
+                queue = new DeviceQueue(out);
+                queues.put(out.getDevice(), queue);
+            }
+
+            if (queue.packets.size() >= MAX_QUEUED_PACKETS)
+                return false;
+
+            queue.packets.add(packet);
+            if (queue.packets.size() == 1 && queue != notifying)
+                turns.add(queue);
+
+            _notifyNext();
+
+            // caller holds its stream lock, so the other streams are confirmed on another thread
+            if (!failedPackets.isEmpty())
+                retryExecutor.execute(confirmRunnable);
+        }
+        return true;
+    }
+
+    /**
+     * To be invoked from outside when the notification is sent to the device
+     */
+    public void onNotificationSent(BluetoothDevice device, int status) {
+        ServerBleOutputStream out;
+        synchronized (this) {
+            if (notifying == null || !notifying.out.getDevice().equals(device))
+                return;
+
+            DeviceQueue queue = notifying;
+            notifying = null;
+            queue.packets.poll();
+            if (!queue.packets.isEmpty())
+                turns.add(queue); // next packet of the device after the other devices
+
+            _notifyNext();
+            out = queue.out;
+        }
+
+        // confirm the packet to the stream (it queues next packet)
+        if (status == BluetoothGatt.GATT_SUCCESS)
+            out.notifyWritten();
+        else
+            out.notifyFailed();
+
+        confirmFailed();
+    }
+
+    // packet being notified is failed if onNotificationSent() did not arrive in time, next device is notified
+    private void checkTimeout() {
+        synchronized (this) {
+            if (notifying == null || System.currentTimeMillis() - notifyingSince < NOTIFY_TIMEOUT)
+                return;
+
+            DeviceQueue queue = notifying;
+            notifying = null; // late onNotificationSent() is ignored (unless the device is notified again meanwhile)
+            logger.warn("Notification timeout for " + queue.out.getDevice());
+            queue.packets.poll();
+            failedPackets.add(queue.out);
+            if (!queue.packets.isEmpty())
+                turns.add(queue); // next packet of the device after the other devices
+
+            _notifyNext();
+        }
+        confirmFailed();
+    }
+
+    // notify first packet of the next device if nothing is being notified
+    private void _notifyNext() {
+        while (notifying == null && !turns.isEmpty()) {
+            DeviceQueue queue = turns.poll();
+            byte[] packet = queue.packets.peek();
+            queue.out.setValue(packet);
+
+            if (factory.notifyChanged(queue.out.getDevice(), queue.out.getCharacteristic(), packet, 1)) {
+                queue.attempts = 0;
+                notifying = queue;
+                notifyingSince = System.currentTimeMillis();
+                return;
+            }
+
+            queue.attempts++;
+            if (queue.attempts < ServerBleRpcConnectionFactory.NOTIFY_ATTEMPTS) {
+                // BLE stack is busy: retry the same device later
+                turns.addFirst(queue);
+                if (!retryScheduled && !closed) {
+                    retryScheduled = true;
+                    retryExecutor.schedule(retryRunnable, RETRY_DELAY, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+
+            logger.warn("Failed to notify " + queue.out.getDevice());
+            queue.attempts = 0;
+            queue.packets.poll();
+            failedPackets.add(queue.out);
+            if (!queue.packets.isEmpty())
+                turns.add(queue);
+        }
+    }
+
+    // confirm failed packets to their streams (not holding the lock)
+    private void confirmFailed() {
+        while (true) {
+            ServerBleOutputStream out;
+            synchronized (this) {
+                out = failedPackets.poll();
+            }
+
+            if (out == null)
+                return;
+
+            out.notifyFailed();
+        }
+    }
+
+    private void _remove(DeviceQueue queue) {
+        queues.remove(queue.out.getDevice());
+        turns.remove(queue);
+        if (notifying == queue)
+            notifying = null; // onNotificationSent() is not expected anymore
+    }
+
+    /**
+     * Drop packets of the stream (eg. when the device is disconnected)
+     */
+    public void remove(ServerBleOutputStream out) {
+        synchronized (this) {
+            DeviceQueue queue = queues.get(out.getDevice());
+            if (queue == null || queue.out != out)
+                return;
+
+            _remove(queue);
+            _notifyNext();
+        }
+        confirmFailed();
+    }
+
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            queues.clear();
+            turns.clear();
+            notifying = null;
+            failedPackets.clear();
+        }
+        retryExecutor.shutdownNow();
+    }
+}
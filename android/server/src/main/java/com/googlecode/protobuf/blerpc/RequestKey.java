@@ -0,0 +1,33 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+/**
+ * Method and its request bytes (calls having equal keys return equal responses for idempotent methods)
+ */
+class RequestKey {
+
+    private final String method;
+    private final ByteString request;
+
+    RequestKey(Descriptors.MethodDescriptor method, Message request) {
+        this.method = method.getFullName();
+        this.request = request.toByteString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RequestKey))
+            return false;
+
+        RequestKey other = (RequestKey) o;
+        return method.equals(other.method) && request.equals(other.request);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * method.hashCode() + request.hashCode();
+    }
+}
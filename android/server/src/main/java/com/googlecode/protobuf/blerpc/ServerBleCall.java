@@ -0,0 +1,188 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.MessageLite;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * RPC call handed to RpcServer (peripheral role)
+ *
+ * Batch call (see {@link BleBatch}) is split into calls handed to RpcServer separately
+ * (all at once or one by one if sequential), their responses are sent back as one batch response.
+ * Request is received by the factory before the call is handed to RpcServer (calls of streaming methods
+ * are run by the factory and are not handed to RpcServer, see {@link StreamingMethod}).
+ * Response of the call canceled by the client is not sent (see {@link CancelableService}).
+ */
+public class ServerBleCall implements RpcConnectionFactory.Connection {
+
+    private static Logger logger = LoggerFactory.getLogger(ServerBleCall.class.getSimpleName());
+
+    // channel of the call handled by RpcServer thread (RpcServer receives the request, invokes the service
+    // and sends the response on the same thread)
+    private static final ThreadLocal<BleChannel> currentChannel = new ThreadLocal<BleChannel>();
+
+    /**
+     * @return channel of the call the service is invoked for on this thread (null if none)
+     */
+    static BleChannel getCurrentChannel() {
+        return currentChannel.get();
+    }
+
+    /**
+     * Calls of one batch
+     */
+    private static class Batch {
+        final List<SocketRpcProtos.Request> requests;
+        final SocketRpcProtos.Response[] responses;
+        final boolean sequential;
+        int remaining;
+
+        Batch(List<SocketRpcProtos.Request> requests, boolean sequential) {
+            this.requests = requests;
+            this.responses = new SocketRpcProtos.Response[requests.size()];
+            this.sequential = sequential;
+            this.remaining = requests.size();
+        }
+    }
+
+    private final BleChannel channel;
+    private final SocketRpcProtos.Request request; // received already (null for the calls of a batch)
+    private final ServerBleRpcConnectionFactory factory;
+    private volatile Batch batch; // null if not a call of a batch
+    private int index; // index of the call in the batch
+    private volatile boolean responded;
+
+    public BleChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @param request request received from the channel
+     * @param factory factory the calls of a batch are handed to RpcServer by
+     */
+    public ServerBleCall(BleChannel channel, SocketRpcProtos.Request request, ServerBleRpcConnectionFactory factory) {
+        this.channel = channel;
+        this.request = request;
+        this.factory = factory;
+    }
+
+    // call of the batch
+    private ServerBleCall(ServerBleCall batchCall, int index) {
+        this.channel = batchCall.channel;
+        this.request = null;
+        this.factory = batchCall.factory;
+        this.batch = batchCall.batch;
+        this.index = index;
+    }
+
+    @Override
+    public void receiveProtoMessage(MessageLite.Builder messageBuilder) throws IOException {
+        currentChannel.set(channel);
+        if (batch != null) {
+            messageBuilder.mergeFrom(batch.requests.get(index).toByteString());
+            return;
+        }
+
+        if (!BleBatch.isBatch(request.getServiceName())) {
+            messageBuilder.mergeFrom(request.toByteString());
+            return;
+        }
+
+        // batch: this is the first call, other calls are handed to RpcServer separately
+        List<SocketRpcProtos.Request> requests = BleBatch.readRequests(request.getRequestProto());
+        if (requests.isEmpty())
+            throw new IOException("Empty batch");
+
+        logger.debug("Batch of " + requests.size() + " calls received on channel " + channel.getId());
+        batch = new Batch(requests, BleBatch.METHOD_SEQUENTIAL.equals(request.getMethodName()));
+        index = 0;
+        if (!batch.sequential)
+            for (int i = 1; i < requests.size(); i++)
+                factory.enqueueCall(new ServerBleCall(this, i));
+
+        messageBuilder.mergeFrom(requests.get(0).toByteString());
+    }
+
+    @Override
+    public void sendProtoMessage(MessageLite message) throws IOException {
+        currentChannel.remove();
+        if (batch == null) {
+            send(message);
+            return;
+        }
+
+        responded = true;
+        onResponse((SocketRpcProtos.Response) message); // RpcServer sends responses only
+    }
+
+    // response of the call of the batch
+    private void onResponse(SocketRpcProtos.Response response) throws IOException {
+        boolean finished;
+        synchronized (batch) {
+            batch.responses[index] = response;
+            batch.remaining--;
+            finished = (batch.remaining == 0);
+        }
+
+        if (batch.sequential && index + 1 < batch.requests.size())
+            factory.enqueueCall(new ServerBleCall(this, index + 1));
+
+        if (!finished)
+            return;
+
+        // all the calls are finished: send batch response
+        logger.debug("Batch finished on channel " + channel.getId());
+        try {
+            send(SocketRpcProtos.Response.newBuilder()
+                    .setCallback(true)
+                    .setResponseProto(BleBatch.writeMessages(Arrays.asList(batch.responses)))
+                    .build());
+        } finally {
+            channel.close();
+        }
+    }
+
+    // send the response unless the call is canceled
+    private void send(MessageLite response) throws IOException {
+        if (channel.isCanceled()) {
+            logger.debug("Response is dropped: call is canceled on channel " + channel.getId());
+            return;
+        }
+
+        try {
+            channel.sendProtoMessage(response);
+        } catch (IOException e) {
+            if (!channel.isCanceled())
+                throw e; // the rest of the response is dropped as the call is canceled
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        currentChannel.remove();
+        if (batch == null) {
+            channel.close();
+            return;
+        }
+
+        // RpcServer failed to respond
+        if (!responded) {
+            responded = true;
+            onResponse(SocketRpcProtos.Response.newBuilder()
+                    .setError("Call failed")
+                    .setErrorReason(SocketRpcProtos.ErrorReason.RPC_FAILED)
+                    .build());
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return batch != null ? responded : channel.isClosed();
+    }
+}
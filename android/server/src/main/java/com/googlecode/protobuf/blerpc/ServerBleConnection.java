@@ -1,7 +1,5 @@
 package com.googlecode.protobuf.blerpc;
 
-import com.google.protobuf.MessageLite;
-import com.googlecode.protobuf.socketrpc.RpcConnectionFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,14 +7,16 @@ import java.io.IOException;
 
 /**
  * Connection for BLE (peripheral role)
+ *
+ * Connection is BLE link of one client shared by many RPC calls,
+ * each call has its own channel accepted when its first packet arrives (see {@link BleLink}).
  */
-public class ServerBleConnection implements RpcConnectionFactory.Connection {
+public class ServerBleConnection {
 
     protected static Logger logger = LoggerFactory.getLogger(ServerBleConnection.class.getSimpleName());
 
-    private BleInputStream in;
     private ServerBleOutputStream out;
-    private boolean delimited;
+    private BleLink link;
     private boolean subscribed; // device is subscribed to 'read character' notifications
 
     public boolean isSubscribed() {
@@ -27,64 +27,46 @@ public class ServerBleConnection implements RpcConnectionFactory.Connection {
         this.subscribed = subscribed;
     }
 
-    public BleInputStream getIn() {
-        return in;
-    }
+    private int mtu = BleOutputStream.DEFAULT_MTU; // negotiated by the client
 
-    public ServerBleOutputStream getOut() {
-        return out;
+    public int getMtu() {
+        return mtu;
     }
 
-    public ServerBleConnection(BleInputStream in, ServerBleOutputStream out, boolean delimited) {
-        this.in = in;
-        this.out = out;
-        this.delimited = delimited;
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+        out.setMtu(mtu); // packets are fragmented using negotiated MTU
     }
 
-    @Override
-    public void sendProtoMessage(MessageLite message) throws IOException {
-        logger.debug(" ------ sendProtoMessage() started");
-
-        // Write message
-        if (delimited) {
-            message.writeDelimitedTo(out);
-            out.flush();
-        } else {
-            message.writeTo(out);
-            out.flush();
-        }
-
-        logger.debug(" ------ sendProtoMessage() finished");
+    public ServerBleOutputStream getOut() {
+        return out;
     }
 
-    @Override
-    public void receiveProtoMessage(MessageLite.Builder messageBuilder) throws IOException {
-        logger.debug(" ------ receiveProtoMessage() started");
-
-        // Read message
-        if (delimited) {
-            messageBuilder.mergeDelimitedFrom(in);
-        } else {
-            messageBuilder.mergeFrom(in);
-        }
+    public BleLink getLink() {
+        return link;
+    }
 
-        logger.debug(" ------ receiveProtoMessage() finished");
+    /**
+     * @param inputBufferSize max bytes received but not read yet per channel
+     * @param listener listener for new channels (new RPC calls)
+     */
+    public ServerBleConnection(ServerBleOutputStream out, int inputBufferSize, boolean delimited, BleLink.Listener listener) {
+        this.out = out;
+        this.link = new BleLink(out, inputBufferSize, delimited, listener);
     }
 
-    private boolean closed = false;
+    private volatile boolean closed = false;
 
-    @Override
     public void close() throws IOException {
-        in.close();
+        logger.debug("close()");
+
+        link.close(); // calls in progress get end of stream
         out.close();
 
         closed = true;
     }
 
-    @Override
     public boolean isClosed() {
         return closed;
     }
-
-
 }
@@ -1,25 +1,49 @@
 package com.googlecode.protobuf.blerpc;
 
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.io.IOException;
 
 /**
  * Output stream for BLE (peripheral role)
+ *
+ * Packets are notified to the connected device only, the characteristic value is kept per connection.
+ * Packets are queued to {@link NotificationScheduler} shared by all the connected devices.
  */
 public class ServerBleOutputStream extends BleOutputStream {
 
-    private ServerBleRpcConnectionFactory factory;
+    public static final int NOTIFY_WINDOW = 4; // packets (receiver is protected by credit)
+
+    private NotificationScheduler scheduler;
+    private BluetoothDevice device;
+    private volatile byte[] value = new byte[] {}; // last packet notified to the device (array is reused by the stream)
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * @return characteristic value for the device (copy of the last packet notified)
+     */
+    public byte[] getValue() {
+        return value.clone();
+    }
+
+    void setValue(byte[] value) {
+        this.value = value;
+    }
 
-    public ServerBleOutputStream(int buffer_size, BluetoothGattCharacteristic characteristic, ServerBleRpcConnectionFactory factory) {
+    public ServerBleOutputStream(int buffer_size, BluetoothGattCharacteristic characteristic,
+                                 BluetoothDevice device, NotificationScheduler scheduler) {
         super(buffer_size, characteristic);
-        this.factory = factory;
+        this.device = device;
+        this.scheduler = scheduler;
+        setWindow(NOTIFY_WINDOW);
     }
 
     @Override
-    protected boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
-        return factory.notifyChanged(characteristic);
+    protected boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value) {
+        // queue is full: packet will be retried as soon as previous packet is notified
+        // (packet array is not reused by the stream until it's confirmed, so it's not copied)
+        return scheduler.enqueue(this, value);
     }
 }
@@ -9,26 +9,48 @@ import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.os.ParcelUuid;
 import android.widget.Toast;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageLite;
 import com.googlecode.protobuf.socketrpc.ServerRpcConnectionFactory;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * RpcConnectionFactory for BLE (peripheral role)
+ *
+ * Every RPC call of a client is a separate channel of the client BLE connection,
+ * so calls are handed to RpcServer (and run by its executor) independently.
+ * Request of every call is received by the factory first: calls of streaming methods are run
+ * by the factory (see {@link #registerStreamingMethod}), the other calls are handed to RpcServer.
  */
 public class ServerBleRpcConnectionFactory implements ServerRpcConnectionFactory {
 
     private Logger logger = LoggerFactory.getLogger(ServerBleRpcConnectionFactory.class.getSimpleName());
 
-    private Map<BluetoothDevice, ServerBleConnection> connections =
-            new HashMap<BluetoothDevice, ServerBleConnection>();
+    // mutated from binder threads
+    private ConcurrentMap<BluetoothDevice, ServerBleConnection> connections =
+            new ConcurrentHashMap<BluetoothDevice, ServerBleConnection>();
 
     private BluetoothAdapter adapter;
     private BluetoothManager manager;
@@ -39,10 +61,192 @@ public class ServerBleRpcConnectionFactory implements ServerRpcConnectionFactory
     private BluetoothLeAdvertiser advertiser;
     private boolean delimited;
 
-    private AtomicBoolean newConnectionReceived = new AtomicBoolean(false);
-    private ServerBleConnection newConnection;
+    private int inputBufferSize = BleInputStream.INPUT_BUFFER_SIZE;
+
+    public int getInputBufferSize() {
+        return inputBufferSize;
+    }
+
+    /**
+     * Max bytes received but not read yet per channel (call), so a connection buffers up to
+     * {@link BlePacket#MAX_CHANNELS} times this size (write requests are not confirmed when exceeded).
+     * Must be at least {@link BlePacket#INITIAL_CREDIT} as the sender starts with this credit.
+     */
+    public void setInputBufferSize(int inputBufferSize) {
+        if (inputBufferSize < BlePacket.INITIAL_CREDIT)
+            throw new IllegalArgumentException("Input buffer size " + inputBufferSize
+                + " is less than initial credit " + BlePacket.INITIAL_CREDIT);
+        this.inputBufferSize = inputBufferSize;
+    }
+
+    private BleCompression compression;
+
+    public BleCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Compress messages to the clients supporting any of the codecs (see {@link BleCompression#createDefault()})
+     */
+    public void setCompression(BleCompression compression) {
+        this.compression = compression;
+    }
+
+    private NotificationScheduler scheduler = new NotificationScheduler(this);
+
+    // packets not acknowledged by the clients are checked periodically
+    private ScheduledExecutorService ackExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private Runnable ackCheck = new Runnable() {
+        @Override
+        public void run() {
+            for (ServerBleConnection eachConnection : connections.values())
+                eachConnection.getOut().checkAcknowledged();
+        }
+    };
+
+    private BlockingQueue<Connection> acceptedChannels = new LinkedBlockingQueue<Connection>();
+    private volatile boolean closed = false;
+
+    // put to the accept queue when the factory is closed
+    private static final Connection CLOSED = new Connection() {
+        @Override
+        public void sendProtoMessage(MessageLite message) throws IOException {
+            throw new IOException("Closed");
+        }
+
+        @Override
+        public void receiveProtoMessage(MessageLite.Builder messageBuilder) throws IOException {
+            throw new IOException("Closed");
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+
+        @Override
+        public boolean isClosed() {
+            return true;
+        }
+    };
     private Context context;
 
+    public static final int MAX_CALL_THREADS = BlePacket.MAX_CHANNELS - 1; // channels of a link
+    public static final int CALL_THREAD_KEEP_ALIVE = 60; // seconds
+
+    // requests are received (and streaming calls are run) on these threads, not on BLE callback thread
+    // (threads are created as needed up to MAX_CALL_THREADS, new calls are rejected beyond)
+    private ExecutorService callExecutor = new ThreadPoolExecutor(0, MAX_CALL_THREADS,
+            CALL_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+    // new call of a client
+    private BleLink.Listener channelListener = new BleLink.Listener() {
+        @Override
+        public void onChannelAccepted(final BleChannel channel) {
+            logger.debug("New call on channel " + channel.getId());
+            try {
+                callExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        receiveCall(channel);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // factory is closed or too many calls are in progress: the call fails
+                if (!closed)
+                    logger.warn("Too many calls in progress, call on channel " + channel.getId() + " is rejected");
+                closeChannel(channel);
+            }
+        }
+    };
+
+    // receive the request of the call and run it
+    private void receiveCall(BleChannel channel) {
+        SocketRpcProtos.Request request;
+        try {
+            SocketRpcProtos.Request.Builder requestBuilder = SocketRpcProtos.Request.newBuilder();
+            channel.receiveProtoMessage(requestBuilder);
+            request = requestBuilder.buildPartial(); // RpcServer responds with error if it's not valid
+        } catch (IOException e) {
+            logger.warn("Failed to receive request on channel " + channel.getId(), e);
+            closeChannel(channel);
+            return;
+        }
+
+        Streaming streaming = streamingMethods.get(request.getServiceName() + "." + request.getMethodName());
+        if (streaming == null) {
+            enqueueCall(new ServerBleCall(channel, request, this));
+            return;
+        }
+
+        if (channel.isCanceled()) {
+            logger.debug("Streaming call is canceled before it's run");
+            closeChannel(channel);
+            return;
+        }
+
+        try {
+            stream(channel, request, streaming);
+        } catch (IOException e) {
+            logger.warn("Failed to finish streaming call on channel " + channel.getId(), e);
+        }
+    }
+
+    // run streaming method (the channel is closed when it returns)
+    private void stream(BleChannel channel, SocketRpcProtos.Request request, Streaming streaming) throws IOException {
+        logger.debug("Streaming call " + request.getMethodName() + " on channel " + channel.getId());
+
+        ServerBleStream stream = new ServerBleStream(channel, streaming.requestPrototype);
+        try {
+            Message message = streaming.requestPrototype.newBuilderForType().mergeFrom(request.getRequestProto()).build();
+            streaming.method.call(message, stream);
+        } catch (Exception e) {
+            logger.error("Streaming call failed", e);
+            stream.fail("Streaming call failed: " + e.getMessage());
+        } finally {
+            stream.finish();
+        }
+    }
+
+    private void closeChannel(BleChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // hand the call to RpcServer
+    void enqueueCall(Connection call) {
+        acceptedChannels.add(call);
+    }
+
+    /**
+     * Streaming method registered
+     */
+    private static class Streaming {
+        final Message requestPrototype;
+        final StreamingMethod method;
+
+        Streaming(Message requestPrototype, StreamingMethod method) {
+            this.requestPrototype = requestPrototype;
+            this.method = method;
+        }
+    }
+
+    // streaming methods by service and method name
+    private Map<String, Streaming> streamingMethods = new ConcurrentHashMap<String, Streaming>();
+
+    /**
+     * Register server-streaming method (its calls are run by the factory and not handed to RpcServer)
+     * @param method method (of the service descriptor)
+     * @param requestPrototype prototype to parse requests
+     */
+    public void registerStreamingMethod(Descriptors.MethodDescriptor method, Message requestPrototype, StreamingMethod streamingMethod) {
+        streamingMethods.put(method.getService().getFullName() + "." + method.getName(),
+                new Streaming(requestPrototype, streamingMethod));
+    }
+
     private void showText(final String message) {
         ((Activity)context).runOnUiThread(new Runnable() {
             @Override
@@ -58,37 +262,54 @@ public class ServerBleRpcConnectionFactory implements ServerRpcConnectionFactory
             String readCharacteristicUUID,
             String writeCharacteristicUUID,
             boolean delimited) {
+        this(context, serviceUUID, readCharacteristicUUID, writeCharacteristicUUID, delimited, false);
+    }
+
+    /**
+     * @param writeWithoutResponse allow clients to pipeline writes using "write without response"
+     */
+    public ServerBleRpcConnectionFactory(
+            Context context,
+            String serviceUUID,
+            String readCharacteristicUUID,
+            String writeCharacteristicUUID,
+            boolean delimited,
+            boolean writeWithoutResponse) {
 
         adapter = BluetoothAdapter.getDefaultAdapter();
         manager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
         this.delimited = delimited;
         this.context = context;
+        ackExecutor.scheduleWithFixedDelay(ackCheck, BleOutputStream.ACK_TIMEOUT, BleOutputStream.ACK_TIMEOUT, TimeUnit.MILLISECONDS);
 
         server = manager.openGattServer(context, new BluetoothGattServerCallback() {
             @Override
-            public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+            public void onConnectionStateChange(final BluetoothDevice device, int status, int newState) {
 
                 if (newState == BluetoothGatt.STATE_CONNECTED) {
                     // new device connected - new connection
-                    BleInputStream in = new BleInputStream(BleInputStream.INPUT_BUFFER_SIZE, BleInputStream.READ_TIMEOUT);
-                    ServerBleOutputStream out = new ServerBleOutputStream(BleOutputStream.OUTPUT_BUFFER_SIZE, readCharacteristic, ServerBleRpcConnectionFactory.this);
-
-                    newConnection = new ServerBleConnection(in, out, ServerBleRpcConnectionFactory.this.delimited);
-                    connections.put(device, newConnection);
-                    newConnectionReceived.set(true); // signal new connection
+                    ServerBleOutputStream out = new ServerBleOutputStream(BleOutputStream.OUTPUT_BUFFER_SIZE, readCharacteristic, device, scheduler);
+
+                    ServerBleConnection newConnection = new ServerBleConnection(out, inputBufferSize, ServerBleRpcConnectionFactory.this.delimited, channelListener);
+                    newConnection.getLink().setCompression(compression);
+                    newConnection.getLink().setFailureListener(new BleLink.FailureListener() {
+                        @Override
+                        public void onLinkFailed(BleLink link) {
+                            dropConnection(device, link);
+                        }
+                    });
+                    ServerBleConnection oldConnection = connections.put(device, newConnection);
+                    if (oldConnection != null)
+                        closeConnection(oldConnection); // disconnection is missed
 
                     logger.debug("Client connected: " + device.toString());
                 }
 
                 if (newState == BluetoothGatt.STATE_DISCONNECTED) {
                     // device disconnected - connection closed
-                    ServerBleConnection connection = connections.get(device);
-                    try {
-                        connection.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    connections.remove(connection);
+                    ServerBleConnection connection = connections.remove(device);
+                    if (connection != null)
+                        closeConnection(connection);
 
                     logger.debug("Client disconnected");
                 }
@@ -140,10 +361,8 @@ public class ServerBleRpcConnectionFactory implements ServerRpcConnectionFactory
             @Override
             public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic,
                                                      boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-                logger.debug("onCharacteristicWriteRequest() " + value.length + " bytes");
-
-                // send write confirmation
-                server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
+                if (logger.isDebugEnabled())
+                    logger.debug("onCharacteristicWriteRequest() " + value.length + " bytes");
 
                 // read value
                 ServerBleConnection connection = connections.get(device);
@@ -152,40 +371,51 @@ public class ServerBleRpcConnectionFactory implements ServerRpcConnectionFactory
                     throw new IllegalStateException("Connection not found");
                 }
 
-                connection.getIn().doRead(value);
+                // data, credit or close packet of a call (does not block, the link fails if the client exceeds its credit)
+                connection.getLink().dispatch(value);
+
+                // send write confirmation (not needed for "write without response")
+                if (responseNeeded)
+                    server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
 
-               logger.debug("Value written " + + value.length + " bytes");
+                if (logger.isDebugEnabled())
+                    logger.debug("Value written " + value.length + " bytes");
             }
 
             @Override
             public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
                logger.debug("onCharacteristicReadRequest()");
 
-                // send value
-                server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, characteristic.getValue());
-
                 ServerBleConnection connection = connections.get(device);
                 if (connection == null)
                     throw new IllegalStateException("Connection not found");
 
-                // as client reads we need notify output stream to set new value (remaining bytes)
-                connection.getOut().notifyWritten();
+                // send value of the device connection (packet is confirmed by onNotificationSent())
+                byte[] value = connection.getOut().getValue();
+                server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
 
-               logger.debug("Value read " + characteristic.getValue());
+                if (logger.isDebugEnabled())
+                    logger.debug("Value read " + value.length + " bytes");
             }
 
-            @Override
-            public void onNotificationSent(BluetoothDevice device, int status) {
-               logger.debug("onNotificationSent: status = " + status);
+            // WARNING: no @Override as it's added in Android 22 (invoked on Android 22+ only)
+            public void onMtuChanged(BluetoothDevice device, int mtu) {
+                logger.debug("onMtuChanged() " + mtu);
 
                 ServerBleConnection connection = connections.get(device);
                 if (connection == null)
                     return;
 
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    // as client reads we need notify output stream to set new value (remaining bytes)
-                    connection.getOut().notifyWritten();
-                }
+                connection.setMtu(mtu);
+            }
+
+            @Override
+            public void onNotificationSent(BluetoothDevice device, int status) {
+                if (logger.isDebugEnabled())
+                    logger.debug("onNotificationSent: status = " + status);
+
+                // confirm the packet to the output stream and notify next packet (of the next device)
+                scheduler.onNotificationSent(device, status);
             }
         });
 
@@ -207,9 +437,12 @@ public class ServerBleRpcConnectionFactory implements ServerRpcConnectionFactory
         service.addCharacteristic(readCharacteristic);
 
         // write characteristic
+        int writeProperties = BluetoothGattCharacteristic.PROPERTY_WRITE;
+        if (writeWithoutResponse)
+            writeProperties |= BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
         writeCharacteristic = new BluetoothGattCharacteristic(
                 UUID.fromString(writeCharacteristicUUID),
-                BluetoothGattCharacteristic.PROPERTY_WRITE,
+                writeProperties,
                 BluetoothGattCharacteristic.PERMISSION_WRITE
         );
         service.addCharacteristic(writeCharacteristic);
@@ -274,41 +507,98 @@ public class ServerBleRpcConnectionFactory implements ServerRpcConnectionFactory
             throw new RuntimeException("Failed to advertise server");*/
     }
 
+    // close connection and drop its calls not handed to RpcServer yet
+    private void closeConnection(ServerBleConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        scheduler.remove(connection.getOut());
+
+        Iterator<Connection> it = acceptedChannels.iterator();
+        while (it.hasNext()) {
+            Connection eachCall = it.next();
+            if (eachCall instanceof ServerBleCall && ((ServerBleCall) eachCall).getChannel().getLink() == connection.getLink())
+                it.remove();
+        }
+    }
+
+    // packet is not delivered to the device: connection is closed and the device is disconnected to connect again
+    private void dropConnection(BluetoothDevice device, BleLink link) {
+        ServerBleConnection connection = connections.get(device);
+        if (connection == null || connection.getLink() != link || !connections.remove(device, connection))
+            return; // closed already
+
+        logger.warn("Packet is not delivered, disconnecting " + device);
+        closeConnection(connection);
+        server.cancelConnection(device);
+    }
+
     @Override
     public void close() throws IOException {
-        for (Map.Entry<BluetoothDevice, ServerBleConnection> eachEntry : connections.entrySet()) {
-            eachEntry.getValue().close();
+        closed = true;
+        for (BluetoothDevice eachDevice : connections.keySet()) {
+            ServerBleConnection connection = connections.remove(eachDevice);
+            if (connection != null)
+                closeConnection(connection);
         }
-        connections.clear();
+
+        scheduler.close();
+        ackExecutor.shutdownNow();
+        callExecutor.shutdownNow(); // streaming calls fail as their connections are closed
+
+        acceptedChannels.clear();
+        acceptedChannels.offer(CLOSED); // wake up waiting threads
     }
 
     @Override
     public Connection createConnection() throws IOException {
-        while (!newConnectionReceived.get()) {
+        if (closed)
+            throw new IOException("Factory is closed");
+
+        while (true) {
+            // wait for new call
+            Connection channel;
             try {
-                Thread.sleep(10);
+                channel = acceptedChannels.take();
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                throw new InterruptedIOException("Interrupted while waiting for new call");
             }
-        }
 
-        ServerBleConnection _newConnection = this.newConnection;
+            if (channel == CLOSED) {
+                acceptedChannels.offer(CLOSED); // for other waiting threads
+                throw new IOException("Factory is closed");
+            }
 
-        // reset
-        newConnectionReceived.set(false);
-        this.newConnection = null;
+            // canceled by the client before handed to RpcServer
+            if (channel instanceof ServerBleCall && ((ServerBleCall) channel).getChannel().isCanceled()) {
+                logger.debug("Call is canceled before it's handled");
+                channel.close();
+                continue;
+            }
 
-        return _newConnection;
+            return channel;
+        }
     }
 
-    private static final int NOTIFY_ATTEMPTS = 3;
+    public static final int NOTIFY_ATTEMPTS = 3;
 
-    private boolean tryNotifyChanged(BluetoothDevice device, BluetoothGattCharacteristic c, boolean indication) {
-        for (int i=0; i<NOTIFY_ATTEMPTS; i++) {
+    // characteristic is shared by all the connections, so its value is set and notified atomically
+    private boolean notifyValue(BluetoothDevice device, BluetoothGattCharacteristic c, byte[] value, boolean indication) {
+        synchronized (c) {
+            c.setValue(value);
+            return server.notifyCharacteristicChanged(device, c, indication);
+        }
+    }
+
+    private boolean tryNotifyChanged(BluetoothDevice device, BluetoothGattCharacteristic c, byte[] value, boolean indication, int attempts) {
+        for (int i=0; i<attempts; i++) {
 
             try {
-                if (server.notifyCharacteristicChanged(device, c, indication)) {
-                   logger.debug("server.notifyCharacteristicChanged() ok");
+                if (notifyValue(device, c, value, indication)) {
+                    if (logger.isDebugEnabled())
+                        logger.debug("server.notifyCharacteristicChanged() ok");
                     return true;
                 }
             } catch (Throwable t) {
@@ -316,6 +606,9 @@ public class ServerBleRpcConnectionFactory implements ServerRpcConnectionFactory
                 t.printStackTrace();
             }
 
+            if (i == attempts - 1)
+                break;
+
             try {
                logger.debug("failed to notifyCharacteristicChanged(), retrying");
                 Thread.sleep(50);
@@ -326,22 +619,26 @@ public class ServerBleRpcConnectionFactory implements ServerRpcConnectionFactory
         return false;
     }
 
-    public boolean notifyChanged(BluetoothGattCharacteristic characteristic) {
-       logger.debug("notifyChanged()");
-
-        boolean notified = true;
-
-        for (Map.Entry<BluetoothDevice, ServerBleConnection> eachEntry : connections.entrySet())
-            if (eachEntry.getValue().isSubscribed()) {
+    /**
+     * Notify the device only
+     * @param value characteristic value for the device
+     * @param attempts attempts to notify (sleeping between them)
+     */
+    public boolean notifyChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] value, int attempts) {
+        if (logger.isDebugEnabled())
+            logger.debug("notifyChanged() " + device);
+
+        ServerBleConnection connection = connections.get(device);
+        if (connection == null || !connection.isSubscribed()) {
+            logger.debug("device is not subscribed");
+            return false;
+        }
 
-                if (tryNotifyChanged(eachEntry.getKey(), characteristic, false)) {
-                   logger.debug("notified " + eachEntry.getKey());
-                } else {
-                   logger.debug("failed to notify!");
-                    notified = false;
-                }
-            }
+        if (!tryNotifyChanged(device, characteristic, value, false, attempts)) {
+            logger.debug("failed to notify!");
+            return false;
+        }
 
-        return notified;
+        return true;
     }
 }
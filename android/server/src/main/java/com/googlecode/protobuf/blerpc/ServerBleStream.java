@@ -0,0 +1,108 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos;
+
+import java.io.IOException;
+
+/**
+ * Stream of messages sent by streaming method (peripheral role)
+ *
+ * Every message is sent as a stream frame (response message) as soon as it's written,
+ * end of stream is the channel closed by the server.
+ * Client-streaming and bidirectional streaming calls receive the messages of the client as request frames
+ * (request message of the call like the first one, see {@link #receive()}),
+ * the client closes its output when it finishes its stream.
+ * Streaming method should stop when the client cancels the call (see {@link #isCanceled()}).
+ */
+public class ServerBleStream {
+
+    private final BleChannel channel;
+    private final Message requestPrototype;
+    private volatile boolean finished;
+
+    /**
+     * @param requestPrototype prototype to parse the messages of the client
+     */
+    public ServerBleStream(BleChannel channel, Message requestPrototype) {
+        this.channel = channel;
+        this.requestPrototype = requestPrototype;
+    }
+
+    /**
+     * Receive next message of the client, blocks until it's received
+     * @return message or null if the client finished its stream
+     */
+    public Message receive() throws IOException {
+        SocketRpcProtos.Request.Builder frameBuilder = SocketRpcProtos.Request.newBuilder();
+        if (!channel.readMessage(channel.getIn(), frameBuilder))
+            return null;
+
+        return requestPrototype.newBuilderForType().mergeFrom(frameBuilder.build().getRequestProto()).build();
+    }
+
+    /**
+     * Send the message, blocks until it's handed to BLE stack (while the client does not read it)
+     */
+    public void send(Message message) throws IOException {
+        if (finished)
+            throw new IOException("Stream is finished");
+
+        if (channel.isCanceled())
+            throw new IOException("Call is canceled");
+
+        sendFrame(SocketRpcProtos.Response.newBuilder()
+                .setCallback(true)
+                .setResponseProto(message.toByteString())
+                .build());
+    }
+
+    /**
+     * Finish the stream with the error (the client gets it as call failure)
+     */
+    public void fail(String error) throws IOException {
+        if (finished)
+            return;
+
+        if (channel.isCanceled()) {
+            finish();
+            return;
+        }
+
+        try {
+            sendFrame(SocketRpcProtos.Response.newBuilder()
+                    .setError(error)
+                    .setErrorReason(SocketRpcProtos.ErrorReason.RPC_FAILED)
+                    .build());
+        } finally {
+            finish();
+        }
+    }
+
+    private void sendFrame(SocketRpcProtos.Response frame) throws IOException {
+        channel.getOut().write(channel.encodeMessage(frame));
+    }
+
+    /**
+     * @return true if nothing can be sent anymore (eg. the client is disconnected or canceled the call)
+     */
+    public boolean isFinished() {
+        return finished || channel.isClosed() || channel.isCanceled();
+    }
+
+    /**
+     * @return true if the client canceled the call (see also {@link BleChannel#addCancelListener})
+     */
+    public boolean isCanceled() {
+        return channel.isCanceled();
+    }
+
+    public BleChannel getChannel() {
+        return channel;
+    }
+
+    void finish() throws IOException {
+        finished = true;
+        channel.close();
+    }
+}
@@ -0,0 +1,20 @@
+package com.googlecode.protobuf.blerpc;
+
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+
+/**
+ * Streaming method: any count of messages are sent for the request (server-streaming),
+ * client can send more requests to the stream too (client-streaming and bidirectional streaming, see {@link ServerBleStream#receive()})
+ * (see {@link ServerBleRpcConnectionFactory#registerStreamingMethod})
+ */
+public interface StreamingMethod {
+
+    /**
+     * Invoked on a thread of the factory (not RpcServer executor), the stream is finished when the method returns
+     * @param request first request of the call
+     * @param stream stream to send the messages to as soon as they are available
+     */
+    void call(Message request, ServerBleStream stream) throws IOException;
+}